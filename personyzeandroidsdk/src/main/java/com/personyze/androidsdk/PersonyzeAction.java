@@ -1,9 +1,9 @@
 package com.personyze.androidsdk;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
 
@@ -14,29 +14,33 @@ import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
 interface PersonyzeMessageHandler {}
 
 public class PersonyzeAction implements Serializable
-{	final protected int id;
+{	static final String DATA_FILE_PREFIX = "Personyze Action Data ";
+
+	final protected int id;
 	private HashMap<String, String> data;
-	private int cacheVersion;
+	private transient ByteBuffer storedData; // data as read by dataFromStorage(), decoded by key on demand, or null if data is decoded
+	int cacheVersion;
 	protected String name;
 	String contentType;
 	String contentParam;
 	String contentBegin;
 	String contentEnd;
+	private String contentBeginHash;
+	private String contentEndHash;
+	private transient PersonyzeBlobStore contentBlobs; // where to read contentBegin and contentEnd from, or null if they're read
 	String libsApp;
 	ArrayList<PersonyzePlaceholder> placeholders;
 
@@ -61,67 +65,185 @@ public class PersonyzeAction implements Serializable
 	{	return (other instanceof PersonyzeAction) && id==((PersonyzeAction)other).id;
 	}
 
-	boolean fromStorage(SharedPreferences storage)
-	{	Set<String> placeholdersSet = storage.getStringSet("Action Placeholders "+id, null);
-		if (placeholdersSet == null)
-		{	placeholders = null;
-			return false;
+	/**
+	 * IDs of placeholders that the cached action has. They go first in the record, so they're read without reading the rest.
+	 * @return null if the action is not cached.
+	 */
+	static int[] placeholderIdsFromStorage(PersonyzeDefinitionsCache cache, int id)
+	{	ByteBuffer in = cache.get(PersonyzeDefinitionsCache.ACTION, id);
+		if (in == null)
+		{	return null;
+		}
+		try
+		{	int[] ids = new int[in.getInt()];
+			for (int i=0; i<ids.length; i++)
+			{	ids[i] = in.getInt();
+			}
+			return ids;
+		}
+		catch (BufferUnderflowException | NegativeArraySizeException e)
+		{	return null;
+		}
+	}
+
+	/**
+	 * Add hashes of content blobs that the cached action refers to.
+	 */
+	static void contentHashesFromStorage(PersonyzeDefinitionsCache cache, int id, Set<String> hashes)
+	{	ByteBuffer in = cache.peek(PersonyzeDefinitionsCache.ACTION, id);
+		if (in != null)
+		{	try
+			{	in.position(in.position() + 4 + 4*in.getInt()); // placeholders
+				PersonyzeDefinitionsCache.readString(in); // contentType
+				PersonyzeDefinitionsCache.readString(in); // contentParam
+				hashes.add(PersonyzeDefinitionsCache.readString(in));
+				hashes.add(PersonyzeDefinitionsCache.readString(in));
+			}
+			catch (BufferUnderflowException | IllegalArgumentException e)
+			{	// the record is corrupt, so its blobs are not needed
+			}
 		}
-		else
-		{	placeholders = new ArrayList<>(placeholdersSet.size());
-			for (String v : placeholdersSet)
-			{	PersonyzePlaceholder placeholder = new PersonyzePlaceholder(Integer.parseInt(v));
-				if (!placeholder.fromStorage(storage))
+	}
+
+	boolean fromStorage(PersonyzeDefinitionsCache cache, PersonyzeBlobStore blobs)
+	{	ByteBuffer in = cache.get(PersonyzeDefinitionsCache.ACTION, id);
+		placeholders = null;
+		name = null;
+		if (in == null)
+		{	return false;
+		}
+		try
+		{	int nPlaceholders = in.getInt();
+			placeholders = new ArrayList<>(nPlaceholders);
+			for (int i=0; i<nPlaceholders; i++)
+			{	PersonyzePlaceholder placeholder = new PersonyzePlaceholder(in.getInt());
+				if (!placeholder.fromStorage(cache))
 				{	return false;
 				}
 				placeholders.add(placeholder);
 			}
+			contentType = PersonyzeDefinitionsCache.readString(in);
+			contentParam = PersonyzeDefinitionsCache.readString(in);
+			contentBeginHash = PersonyzeDefinitionsCache.readString(in);
+			contentEndHash = PersonyzeDefinitionsCache.readString(in);
+			if (contentBeginHash!=null && !blobs.contains(contentBeginHash) || contentEndHash!=null && !blobs.contains(contentEndHash))
+			{	return false;
+			}
+			synchronized (this)
+			{	contentBegin = null;
+				contentEnd = null;
+				contentBlobs = blobs;
+			}
+			blobs.addReader(this);
+			libsApp = PersonyzeDefinitionsCache.readString(in);
+			cacheVersion = in.getInt();
+			name = PersonyzeDefinitionsCache.readString(in); // last, so it's set only if the record is complete
+		}
+		catch (BufferUnderflowException | IllegalArgumentException e)
+		{	name = null;
 		}
-		name = storage.getString("Action Name "+id, null);
-		contentType = storage.getString("Action Content Type "+id, null);
-		contentParam = storage.getString("Action Content Param "+id, null);
-		contentBegin = storage.getString("Action Content Begin "+id, null);
-		contentEnd = storage.getString("Action Content End "+id, null);
-		libsApp = storage.getString("Action Libs "+id, null);
-		cacheVersion = storage.getInt("Action Cache Version "+id, 0);
 		return name != null;
 	}
 
-	void toStorage(SharedPreferences storage)
-	{	SharedPreferences.Editor editor = storage.edit();
-		editor.putString("Action Name "+id, name);
-		editor.putString("Action Content Type "+id, contentType);
-		editor.putString("Action Content Param "+id, contentParam);
-		editor.putString("Action Content Begin "+id, contentBegin);
-		editor.putString("Action Content End "+id, contentEnd);
-		editor.putString("Action Libs "+id, libsApp);
-		editor.putInt("Action Cache Version "+id, cacheVersion);
-		Set<String> placeholdersSet = new HashSet<>();
+	void toStorage(PersonyzeDefinitionsCache cache, PersonyzeBlobStore blobs)
+	{	loadContent();
+		try
+		{	contentBeginHash = blobs.put(contentBegin);
+			contentEndHash = blobs.put(contentEnd);
+		}
+		catch (IOException e)
+		{	Log.e("Personyze", "Couldn't store action content: "+e.getLocalizedMessage());
+			return;
+		}
+		PersonyzeDefinitionsCache.Out out = new PersonyzeDefinitionsCache.Out();
+		out.writeInt(placeholders.size());
 		for (PersonyzePlaceholder placeholder : placeholders)
-		{	placeholdersSet.add(Integer.toString(placeholder.id));
+		{	out.writeInt(placeholder.id);
 		}
-		editor.putStringSet("Action Placeholders "+id, placeholdersSet);
-		editor.apply();
+		out.writeString(contentType);
+		out.writeString(contentParam);
+		out.writeString(contentBeginHash);
+		out.writeString(contentEndHash);
+		out.writeString(libsApp);
+		out.writeInt(cacheVersion);
+		out.writeString(name);
+		cache.put(PersonyzeDefinitionsCache.ACTION, id, out);
+	}
+
+	/**
+	 * Content is read from the blob store only when it's needed, so restored actions don't keep it in memory till then.
+	 */
+	synchronized void loadContent()
+	{	if (contentBlobs != null)
+		{	contentBegin = contentBeginHash==null ? null : contentBlobs.get(contentBeginHash);
+			contentEnd = contentEndHash==null ? null : contentBlobs.get(contentEndHash);
+			contentBlobs = null;
+		}
+	}
+
+	/**
+	 * If the content is not read yet, add hashes of its blobs to the set.
+	 * @param hashes Where to add, or null to only check.
+	 * @return Whether the content is not read yet.
+	 */
+	synchronized boolean contentHashesIfNotLoaded(Set<String> hashes)
+	{	if (contentBlobs == null)
+		{	return false;
+		}
+		if (hashes != null)
+		{	hashes.add(contentBeginHash);
+			hashes.add(contentEndHash);
+		}
+		return true;
+	}
+
+	synchronized void setContent(String contentBegin, String contentEnd)
+	{	this.contentBegin = contentBegin;
+		this.contentEnd = contentEnd;
+		contentBlobs = null;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{	loadContent();
+		synchronized (this)
+		{	if (storedData != null)
+			{	data = PersonyzeActionData.decode(storedData);
+				storedData = null;
+			}
+		}
+		out.defaultWriteObject();
+	}
+
+	static String dataFileName(int id)
+	{	return DATA_FILE_PREFIX+id;
 	}
 
 	void dataToStorage(Context context) throws IOException
-	{	File file = new File(context.getCacheDir(), "Personyze Action Data "+id);
+	{	File file = new File(context.getCacheDir(), dataFileName(id));
 		if (data != null)
-		{	try (FileOutputStream s = new FileOutputStream(file))
-			{	new ObjectOutputStream(s).writeObject(data);
-			}
+		{	PersonyzeActionData.write(file, data);
 		}
 		else if (file.exists() && !file.delete())
 		{	throw new IOException("Couldn't delete file");
 		}
 	}
 
-	void dataFromStorage(Context context) throws IOException, ClassNotFoundException
-	{	File file = new File(context.getCacheDir(), "Personyze Action Data "+id);
-		data = null;
-		if (file.exists())
-		{	data = (HashMap<String, String>)new ObjectInputStream(new FileInputStream(file)).readObject();
+	synchronized void dataFromStorage(Context context) throws IOException
+	{	data = null;
+		storedData = PersonyzeActionData.read(new File(context.getCacheDir(), dataFileName(id)));
+	}
+
+	/**
+	 * @return Value from data, or null if there's no such key.
+	 */
+	private synchronized String dataValue(String key)
+	{	if (key==null || key.length()==0)
+		{	return null;
+		}
+		if (storedData != null)
+		{	return PersonyzeActionData.get(storedData, key);
 		}
+		return data==null ? null : data.get(key);
 	}
 
 	public int getId()
@@ -137,10 +259,12 @@ public class PersonyzeAction implements Serializable
 	}
 
 	public String getContent()
-	{	return String.format
+	{	loadContent();
+		String value = dataValue(contentParam);
+		return String.format
 		(	"%s%s%s",
 			contentBegin==null ? "" : contentBegin,
-			data==null || contentParam==null || contentParam.length()==0 || !data.containsKey(contentParam) ? "" : data.get(contentParam),
+			value==null ? "" : value,
 			contentEnd==null ? "" : contentEnd
 		);
 	}
@@ -178,7 +302,8 @@ public class PersonyzeAction implements Serializable
 
 	public String getContentHtmlDoc()
 	{	if (contentType!=null && contentType.equals("text/html"))
-		{	StringBuilder html = new StringBuilder("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\"><meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0\"></head><body style=\"visibility:hidden\" onload=\"document.body.style.visibility=''\"><script src=\"");
+		{	loadContent();
+			StringBuilder html = new StringBuilder("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\"><meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0\"></head><body style=\"visibility:hidden\" onload=\"document.body.style.visibility=''\"><script src=\"");
 			html.append(PersonyzeTracker.WEB_VIEW_LIB_URL);
 			html.append("?v=");
 			html.append(cacheVersion);
@@ -199,8 +324,9 @@ public class PersonyzeAction implements Serializable
 			if (contentBegin != null)
 			{	html.append(contentBegin);
 			}
-			if (data!=null && contentParam!=null && contentParam.length()!=0 && data.containsKey(contentParam))
-			{	html.append(data.get(contentParam));
+			String value = dataValue(contentParam);
+			if (value != null)
+			{	html.append(value);
 			}
 			if (contentEnd != null)
 			{	html.append(contentEnd);
@@ -0,0 +1,155 @@
+package com.personyze.androidsdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * File format of action data (the map that comes with each action in tracker response).
+ * Format (big-endian): MAGIC, FORMAT_VERSION, number of entries, and for each entry key and value as length-prefixed UTF-8, with length -1 for null value.
+ * The file is read as is, and values are decoded only when asked by key.
+ */
+class PersonyzeActionData
+{	private static final int MAGIC = 0x505a4144; // "PZAD"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int OBJECT_STREAM_HEADER = (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF)<<16 | ObjectStreamConstants.STREAM_VERSION;
+
+	/**
+	 * Write the map to the file. The file is replaced at once, so it's never partially written.
+	 */
+	static void write(File file, Map<String, String> data) throws IOException
+	{	byte[][] encoded = new byte[data.size()*2][];
+		int size = HEADER_SIZE;
+		int i = 0;
+		for (Map.Entry<String, String> entry : data.entrySet())
+		{	encoded[i] = entry.getKey().getBytes(PersonyzeDefinitionsCache.UTF8);
+			encoded[i+1] = entry.getValue()==null ? null : entry.getValue().getBytes(PersonyzeDefinitionsCache.UTF8);
+			size += 8 + encoded[i].length + (encoded[i+1]==null ? 0 : encoded[i+1].length);
+			i += 2;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(FORMAT_VERSION);
+		buffer.putInt(data.size());
+		for (byte[] bytes : encoded)
+		{	if (bytes == null)
+			{	buffer.putInt(-1);
+			}
+			else
+			{	buffer.putInt(bytes.length);
+				buffer.put(bytes);
+			}
+		}
+		buffer.flip();
+		File tmp = new File(file.getPath()+".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp))
+		{	FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+			{	channel.write(buffer);
+			}
+		}
+		if (!tmp.renameTo(file))
+		{	throw new IOException("Couldn't write "+file);
+		}
+	}
+
+	/**
+	 * The file written before FORMAT_VERSION 1, with ObjectOutputStream, is converted to the current format once.
+	 * @return Entries of the file, positioned after the header, to pass to {@link #get(ByteBuffer, String)}. Null if the file doesn't exist.
+	 * @throws IOException If the file is of unknown format.
+	 */
+	static ByteBuffer read(File file) throws IOException
+	{	if (!file.exists())
+		{	return null;
+		}
+		ByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+		{	FileChannel channel = raf.getChannel();
+			buffer = ByteBuffer.allocate((int)channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer)!=-1)
+			{	// read fully
+			}
+			buffer.flip();
+		}
+		if (buffer.remaining()>=4 && buffer.getInt(0)==OBJECT_STREAM_HEADER)
+		{	write(file, readObjectStream(buffer));
+			return read(file);
+		}
+		if (buffer.remaining()<HEADER_SIZE || buffer.getInt()!=MAGIC || buffer.getInt()!=FORMAT_VERSION)
+		{	throw new IOException("Unknown format of "+file);
+		}
+		return buffer.slice();
+	}
+
+	private static HashMap<String, String> readObjectStream(ByteBuffer buffer) throws IOException
+	{	try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.limit())))
+		{	HashMap<String, String> data = new HashMap<>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)in.readObject()).entrySet())
+			{	data.put((String)entry.getKey(), (String)entry.getValue());
+			}
+			return data;
+		}
+		catch (ClassNotFoundException | ClassCastException e)
+		{	throw new IOException("Unknown format of action data", e);
+		}
+	}
+
+	/**
+	 * Find the value by key, without decoding the other entries.
+	 * @param entries What {@link #read(File)} returned.
+	 * @return The value, or null if there's no such key, or the file is corrupt.
+	 */
+	static String get(ByteBuffer entries, String key)
+	{	ByteBuffer in = entries.duplicate();
+		byte[] keyBytes = key.getBytes(PersonyzeDefinitionsCache.UTF8);
+		try
+		{	for (int n=in.getInt(); n>0; n--)
+			{	int keyLength = in.getInt();
+				boolean found = keyLength == keyBytes.length;
+				for (int i=0; i<keyLength; i++)
+				{	byte b = in.get();
+					found = found && b==keyBytes[i];
+				}
+				if (found)
+				{	return PersonyzeDefinitionsCache.readString(in);
+				}
+				int valueLength = in.getInt();
+				if (valueLength > 0)
+				{	in.position(in.position() + valueLength);
+				}
+			}
+		}
+		catch (BufferUnderflowException | IllegalArgumentException e)
+		{	// corrupt, so not found
+		}
+		return null;
+	}
+
+	/**
+	 * Decode all the entries.
+	 */
+	static HashMap<String, String> decode(ByteBuffer entries)
+	{	ByteBuffer in = entries.duplicate();
+		HashMap<String, String> data = new HashMap<>();
+		try
+		{	for (int n=in.getInt(); n>0; n--)
+			{	String key = PersonyzeDefinitionsCache.readString(in);
+				data.put(key, PersonyzeDefinitionsCache.readString(in));
+			}
+		}
+		catch (BufferUnderflowException | IllegalArgumentException e)
+		{	// return what was read
+		}
+		return data;
+	}
+}
@@ -0,0 +1,40 @@
+package com.personyze.androidsdk;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.Random;
+
+/**
+ * Delays between retries of a failed request: exponential, with random jitter, so clients that failed together don't retry together.
+ */
+class PersonyzeBackoff
+{	private static final long BASE_DELAY_MILLIS = 1000;
+	private static final long MAX_DELAY_MILLIS = 30000;
+
+	private static final Handler handler = new Handler(Looper.getMainLooper());
+	private static final Random random = new Random();
+
+	/**
+	 * @param attempt 0 for the first retry.
+	 * @return Random delay between half and full of BASE_DELAY_MILLIS*2^attempt, but not more than MAX_DELAY_MILLIS.
+	 */
+	static long delayMillis(int attempt)
+	{	long delay = Math.min(BASE_DELAY_MILLIS << Math.min(attempt, 16), MAX_DELAY_MILLIS);
+		synchronized (random)
+		{	return delay/2 + (long)(random.nextDouble() * (delay/2));
+		}
+	}
+
+	/**
+	 * Task that completes after the delay, that {@link #delayMillis(int)} returned.
+	 */
+	static Task<Void> delay(long millis)
+	{	final TaskCompletionSource<Void> asyncResult = new TaskCompletionSource<>();
+		handler.postDelayed(() -> asyncResult.setResult(null), millis);
+		return asyncResult.getTask();
+	}
+}
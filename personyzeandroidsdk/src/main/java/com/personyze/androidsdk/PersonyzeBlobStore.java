@@ -0,0 +1,183 @@
+package com.personyze.androidsdk;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Large strings, like HTML content of actions, stored one per file, named by hash of the content.
+ * The same content is stored once, and a file never changes after it's written, so it can be read without locking.
+ * Recently read strings are kept in memory, up to MAX_CACHED_CHARS.
+ * Actions restored from cache read their content on demand, so the files they refer to are not deleted while such actions are alive.
+ */
+class PersonyzeBlobStore
+{	private static final int MAX_CACHED_CHARS = 256*1024;
+
+	private final File dir;
+	private final LruCache<String, String> cache = new LruCache<String, String>(MAX_CACHED_CHARS)
+	{	@Override protected int sizeOf(String hash, String content)
+		{	return content.length();
+		}
+	};
+	private final ArrayList<WeakReference<PersonyzeAction>> readers = new ArrayList<>(); // actions that didn't read their content yet
+	private int pruneReadersAt = 16;
+
+	PersonyzeBlobStore(File dir)
+	{	this.dir = dir;
+	}
+
+	private static String hash(byte[] data)
+	{	try
+		{	byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+			{	sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{	throw new IllegalStateException(e); // SHA-1 is always present
+		}
+	}
+
+	/**
+	 * Store the content, if it's not stored yet.
+	 * @return Hash by which to get it, or null if content is null.
+	 */
+	String put(String content) throws IOException
+	{	if (content == null)
+		{	return null;
+		}
+		byte[] data = content.getBytes(PersonyzeDefinitionsCache.UTF8);
+		String hash = hash(data);
+		File file = new File(dir, hash);
+		if (!file.exists())
+		{	if (!dir.exists() && !dir.mkdirs())
+			{	throw new IOException("Couldn't create directory "+dir);
+			}
+			File tmp = new File(dir, hash+".tmp");
+			try (FileOutputStream out = new FileOutputStream(tmp))
+			{	out.write(data);
+			}
+			if (!tmp.renameTo(file))
+			{	throw new IOException("Couldn't write "+file);
+			}
+		}
+		cache.put(hash, content);
+		return hash;
+	}
+
+	/**
+	 * The action will read its content from here later. Till then, {@link #retainOnly(Set)} keeps its blobs, and {@link #clear()} makes it read them first.
+	 */
+	synchronized void addReader(PersonyzeAction action)
+	{	if (readers.size() >= pruneReadersAt)
+		{	liveReaders();
+			pruneReadersAt = Math.max(16, readers.size()*2);
+		}
+		readers.add(new WeakReference<>(action));
+	}
+
+	/**
+	 * Forget the actions that were garbage collected, or already read their content.
+	 */
+	private ArrayList<PersonyzeAction> liveReaders()
+	{	ArrayList<PersonyzeAction> live = new ArrayList<>();
+		for (Iterator<WeakReference<PersonyzeAction>> it=readers.iterator(); it.hasNext();)
+		{	PersonyzeAction action = it.next().get();
+			if (action==null || !action.contentHashesIfNotLoaded(null))
+			{	it.remove();
+			}
+			else
+			{	live.add(action);
+			}
+		}
+		return live;
+	}
+
+	boolean contains(String hash)
+	{	return new File(dir, hash).exists();
+	}
+
+	/**
+	 * @return The content, or null if it's not stored.
+	 */
+	String get(String hash)
+	{	String content = cache.get(hash);
+		if (content == null)
+		{	File file = new File(dir, hash);
+			if (file.exists())
+			{	try (InputStream in = new FileInputStream(file))
+				{	ByteArrayOutputStream buffer = new ByteArrayOutputStream((int)file.length());
+					byte[] chunk = new byte[8192];
+					int n;
+					while ((n = in.read(chunk)) != -1)
+					{	buffer.write(chunk, 0, n);
+					}
+					content = new String(buffer.toByteArray(), PersonyzeDefinitionsCache.UTF8);
+					cache.put(hash, content);
+				}
+				catch (IOException e)
+				{	Log.e("Personyze", "Couldn't read "+file+": "+e.getLocalizedMessage());
+				}
+			}
+		}
+		return content;
+	}
+
+	/**
+	 * Delete the files that are not in this set, and that no live action is going to read.
+	 * @return Number of deleted files.
+	 */
+	synchronized int retainOnly(Set<String> hashes)
+	{	for (PersonyzeAction action : liveReaders())
+		{	action.contentHashesIfNotLoaded(hashes);
+		}
+		int nDeleted = 0;
+		File[] files = dir.listFiles();
+		if (files != null)
+		{	for (File file : files)
+			{	String hash = file.getName();
+				if (!hashes.contains(hash))
+				{	cache.remove(hash);
+					if (file.delete())
+					{	nDeleted++;
+					}
+				}
+			}
+		}
+		return nDeleted;
+	}
+
+	/**
+	 * Delete all the files, and forget the cached strings. Live actions that didn't read their content yet read it now.
+	 */
+	synchronized void clear()
+	{	for (PersonyzeAction action : liveReaders())
+		{	action.loadContent();
+		}
+		readers.clear();
+		cache.evictAll();
+		File[] files = dir.listFiles();
+		if (files != null)
+		{	for (File file : files)
+			{	if (!file.delete())
+				{	Log.e("Personyze", "Couldn't delete "+file);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.personyze.androidsdk;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending requests to Personyze gateway while it's down.
+ * CLOSED: requests go, and outcomes of the last windowSize requests are counted. When the share of failures reaches errorRate, it becomes OPEN.
+ * OPEN: requests fail immediately with {@link PersonyzeError.Type#CIRCUIT_OPEN}. After openMillis it becomes HALF_OPEN.
+ * HALF_OPEN: one request goes to probe the server. If it succeeds, it's CLOSED again, otherwise OPEN for twice as long, up to MAX_OPEN_MILLIS.
+ * Only the outcome of the probe moves the breaker out of HALF_OPEN. Requests that were sent in an earlier state don't count.
+ * A probe that has no outcome after the time the breaker was open, e.g. because its task was lost, counts as failed, so the breaker can't stay HALF_OPEN forever.
+ * Only errors that mean that the server is unavailable are counted as failures. Other errors, like invalid API key, are answers of a working server.
+ */
+class PersonyzeCircuitBreaker
+{	private static final long MAX_OPEN_MILLIS = 10*60*1000;
+
+	enum State
+	{	CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Permission to send one request, that {@link #allowRequest()} gives.
+	 */
+	static final class Permit
+	{	final boolean isProbe;
+		final int generation; // of the state in which it was given
+
+		Permit(boolean isProbe, int generation)
+		{	this.isProbe = isProbe;
+			this.generation = generation;
+		}
+	}
+
+	private int windowSize = 10;
+	private double errorRate = 0.5;
+	private long openMillis = 30*1000;
+
+	private State state = State.CLOSED;
+	private boolean[] window = new boolean[windowSize]; // true for failure, as ring buffer
+	private int windowPos;
+	private int nOutcomes; // up to windowSize
+	private int nFailures; // in window
+	private long curOpenMillis;
+	private long openedAt;
+	private boolean probeInFlight;
+	private long probeSentAt;
+	private int generation; // changes when the breaker opens or closes
+
+	/**
+	 * @param windowSize Number of last requests to count. 0 disables the breaker.
+	 * @param errorRate Share of failed requests in the window, from 0 to 1, that opens the breaker. It's not checked till the window is full.
+	 * @param openMillis How long to wait before probing the server after the breaker opened.
+	 * @throws IllegalArgumentException If windowSize is negative, errorRate is not above 0 and up to 1, or openMillis is not positive.
+	 */
+	synchronized void configure(int windowSize, double errorRate, long openMillis)
+	{	if (windowSize < 0)
+		{	throw new IllegalArgumentException("windowSize must not be negative");
+		}
+		if (!(errorRate>0 && errorRate<=1)) // also NaN
+		{	throw new IllegalArgumentException("errorRate must be above 0 and up to 1");
+		}
+		if (openMillis <= 0)
+		{	throw new IllegalArgumentException("openMillis must be positive");
+		}
+		this.windowSize = windowSize;
+		this.errorRate = errorRate;
+		this.openMillis = openMillis;
+		window = new boolean[Math.max(windowSize, 1)];
+		close();
+	}
+
+	static boolean isFailure(Exception e)
+	{	if (!(e instanceof PersonyzeError))
+		{	return false;
+		}
+		switch (((PersonyzeError)e).getType())
+		{	case HTTP_500:
+			case HTTP_503:
+			case TIMEOUT:
+			case NO_CONNECTION:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	synchronized State getState()
+	{	long now = SystemClock.elapsedRealtime();
+		if (state==State.OPEN && now-openedAt >= curOpenMillis)
+		{	state = State.HALF_OPEN;
+		}
+		else if (state==State.HALF_OPEN && probeInFlight && now-probeSentAt >= curOpenMillis)
+		{	probeInFlight = false; // the probe is lost, and its late outcome will be of older generation
+			open(Math.min(curOpenMillis*2, MAX_OPEN_MILLIS));
+		}
+		return state;
+	}
+
+	/**
+	 * @return How long it will stay OPEN, or 0 if requests can be sent now.
+	 */
+	synchronized long millisTillProbe()
+	{	return getState()==State.OPEN ? Math.max(curOpenMillis - (SystemClock.elapsedRealtime()-openedAt), 1) : 0;
+	}
+
+	/**
+	 * Call before sending a request. If it returns a permit, {@link #record(Permit, Exception)} must be called with it when the request completes.
+	 * @return null if the request must not be sent.
+	 */
+	synchronized Permit allowRequest()
+	{	switch (getState())
+		{	case CLOSED:
+				return new Permit(false, generation);
+			case HALF_OPEN:
+				if (!probeInFlight)
+				{	probeInFlight = true;
+					probeSentAt = SystemClock.elapsedRealtime();
+					return new Permit(true, generation);
+				}
+				return null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @param permit What {@link #allowRequest()} returned for this request.
+	 * @param e Exception with which the request completed, or null if it succeeded.
+	 */
+	synchronized void record(Permit permit, Exception e)
+	{	if (windowSize <= 0)
+		{	return;
+		}
+		boolean failed = isFailure(e);
+		if (permit.isProbe)
+		{	if (permit.generation==generation && probeInFlight)
+			{	probeInFlight = false;
+				if (failed)
+				{	open(Math.min(curOpenMillis*2, MAX_OPEN_MILLIS));
+				}
+				else
+				{	close();
+				}
+			}
+			return;
+		}
+		if (state!=State.CLOSED || permit.generation!=generation)
+		{	return; // request that was sent before the breaker opened
+		}
+		if (nOutcomes == windowSize)
+		{	if (window[windowPos])
+			{	nFailures--;
+			}
+		}
+		else
+		{	nOutcomes++;
+		}
+		window[windowPos] = failed;
+		windowPos = (windowPos + 1) % windowSize;
+		if (failed)
+		{	nFailures++;
+			if (nOutcomes==windowSize && nFailures >= errorRate*windowSize)
+			{	open(openMillis);
+			}
+		}
+	}
+
+	private void open(long millis)
+	{	state = State.OPEN;
+		generation++;
+		openedAt = SystemClock.elapsedRealtime();
+		curOpenMillis = millis;
+	}
+
+	private void close()
+	{	state = State.CLOSED;
+		generation++;
+		windowPos = 0;
+		nOutcomes = 0;
+		nFailures = 0;
+		probeInFlight = false;
+	}
+}
@@ -0,0 +1,244 @@
+package com.personyze.androidsdk;
+
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One queued tracker event.
+ * The opcode and the arguments are kept as given, and are converted to what Personyze server expects only when the request is serialized.
+ * The command is also the node of {@link PersonyzeCommandQueue}, so logging an event allocates only this object.
+ */
+class PersonyzeCommand
+{	private static final String DOC_URN_PREFIX = "urn:personyze:doc:";
+
+	enum Op
+	{	NAVIGATE("Navigate"),
+		USER_PROFILE("User profile"),
+		PRODUCT_VIEWED("Product Viewed"),
+		PRODUCT_ADDED_TO_CART("Product Added to cart"),
+		PRODUCT_LIKED("Product Liked"),
+		PRODUCT_PURCHASED("Product Purchased"),
+		PRODUCT_UNLIKED("Product Unliked"),
+		PRODUCT_REMOVED_FROM_CART("Product Removed from cart"),
+		PRODUCTS_PURCHASED("Products Purchased"),
+		PRODUCTS_UNLIKED("Products Unliked"),
+		PRODUCTS_REMOVED_FROM_CART("Products Removed from cart"),
+		ARTICLE_VIEWED("Article Viewed"),
+		ARTICLE_LIKED("Article Liked"),
+		ARTICLE_COMMENTED("Article Commented"),
+		ARTICLE_UNLIKED("Article Unliked"),
+		ARTICLE_GOAL("Article Goal"),
+		ACTION_STATUS("Action Status");
+
+		private static final HashMap<String, Op> byWire = new HashMap<>();
+		static
+		{	for (Op op : values())
+			{	byWire.put(op.wire, op);
+			}
+		}
+
+		final String wire;
+
+		Op(String wire)
+		{	this.wire = wire;
+		}
+	}
+
+	final Op op;
+	final int id; // action ID for ACTION_STATUS
+	final String arg1; // document name, profile field, product or article ID, or action status
+	final String arg2; // profile value or action status argument
+	volatile PersonyzeCommand next; // link in PersonyzeCommandQueue
+
+	PersonyzeCommand(Op op, int id, String arg1, String arg2)
+	{	this.op = op;
+		this.id = id;
+		this.arg1 = arg1;
+		this.arg2 = arg2;
+	}
+
+	/**
+	 * Parse command from the form in which it's sent.
+	 * @return Null if it's not a known command.
+	 */
+	static PersonyzeCommand fromWire(String[] args)
+	{	Op op = args.length==0 ? null : Op.byWire.get(args[0]);
+		if (op == null)
+		{	return null;
+		}
+		switch (op)
+		{	case NAVIGATE:
+				String doc = args.length<2 || args[1]==null ? "" : args[1];
+				return new PersonyzeCommand(op, 0, doc.startsWith(DOC_URN_PREFIX) ? doc.substring(DOC_URN_PREFIX.length()) : doc, null);
+			case ACTION_STATUS:
+				return args.length<4 ? null : new PersonyzeCommand(op, PersonyzeTracker.intVal(args[1]), args[2], args[3]);
+			case USER_PROFILE:
+				return args.length<3 ? null : new PersonyzeCommand(op, 0, args[1], args[2]);
+			case PRODUCTS_PURCHASED:
+			case PRODUCTS_UNLIKED:
+			case PRODUCTS_REMOVED_FROM_CART:
+				return new PersonyzeCommand(op, 0, null, null);
+			default:
+				return args.length<2 ? null : new PersonyzeCommand(op, 0, args[1], null);
+		}
+	}
+
+	/**
+	 * Write as JSON array, in the form in which Personyze server expects it.
+	 */
+	void write(JsonWriter json) throws IOException
+	{	json.beginArray();
+		json.value(op.wire);
+		switch (op)
+		{	case NAVIGATE:
+				json.value(DOC_URN_PREFIX+arg1);
+				break;
+			case ACTION_STATUS:
+				json.value(Integer.toString(id));
+				json.value(arg1);
+				json.value(arg2);
+				break;
+			case USER_PROFILE:
+				json.value(arg1);
+				json.value(arg2);
+				break;
+			case PRODUCTS_PURCHASED:
+			case PRODUCTS_UNLIKED:
+			case PRODUCTS_REMOVED_FROM_CART:
+				break;
+			default:
+				json.value(arg1);
+		}
+		json.endArray();
+	}
+
+	String toJson() throws IOException
+	{	StringWriter buffer = new StringWriter();
+		JsonWriter json = new JsonWriter(buffer);
+		write(json);
+		json.close();
+		return buffer.toString();
+	}
+
+	@Override public boolean equals(Object other)
+	{	if (!(other instanceof PersonyzeCommand))
+		{	return false;
+		}
+		PersonyzeCommand command = (PersonyzeCommand)other;
+		return op==command.op && id==command.id && Objects.equals(arg1, command.arg1) && Objects.equals(arg2, command.arg2);
+	}
+
+	@Override public int hashCode()
+	{	return Objects.hash(op, id, arg1, arg2);
+	}
+
+	/**
+	 * Remove commands that don't change what Personyze server will know, before sending them.
+	 * 1. "Product Added to cart" followed by "Products Removed from cart" is "Product Viewed", and "Product Liked" followed by "Products Unliked" is "Product Viewed", unless the product appears in other cart or favorites commands in between.
+	 * 2. Within one document (till next "Navigate") repeated "Product Viewed", "Article Viewed" and action statuses are sent once.
+	 * Only exact repeats are removed: different statuses of one action (like "target" and then "close") are separate events for Personyze server, and all are sent.
+	 * 3. Within one document only the last "User profile" value of each field is sent.
+	 * @return New list, the original one is not modified.
+	 */
+	static ArrayList<PersonyzeCommand> compact(List<PersonyzeCommand> commands)
+	{	int n = commands.size();
+		PersonyzeCommand[] result = commands.toArray(new PersonyzeCommand[n]);
+		// 1. Backwards, to know whether bulk removal follows
+		boolean cartCleared = false;
+		boolean likesCleared = false;
+		HashSet<String> cartTouched = new HashSet<>();
+		HashSet<String> likesTouched = new HashSet<>();
+		for (int i=n-1; i>=0; i--)
+		{	PersonyzeCommand command = result[i];
+			switch (command.op)
+			{	case PRODUCTS_REMOVED_FROM_CART:
+					cartCleared = true;
+					cartTouched.clear();
+					break;
+				case PRODUCTS_PURCHASED:
+					cartCleared = false; // products added before this are purchased, not viewed
+					break;
+				case PRODUCT_PURCHASED:
+				case PRODUCT_REMOVED_FROM_CART:
+					cartTouched.add(command.arg1);
+					break;
+				case PRODUCT_ADDED_TO_CART:
+					if (cartCleared && !cartTouched.contains(command.arg1))
+					{	result[i] = new PersonyzeCommand(Op.PRODUCT_VIEWED, 0, command.arg1, null);
+					}
+					break;
+				case PRODUCTS_UNLIKED:
+					likesCleared = true;
+					likesTouched.clear();
+					break;
+				case PRODUCT_UNLIKED:
+					likesTouched.add(command.arg1);
+					break;
+				case PRODUCT_LIKED:
+					if (likesCleared && !likesTouched.contains(command.arg1))
+					{	result[i] = new PersonyzeCommand(Op.PRODUCT_VIEWED, 0, command.arg1, null);
+					}
+					break;
+			}
+		}
+		// 2, 3. Forwards, document by document
+		HashSet<PersonyzeCommand> seen = new HashSet<>();
+		HashMap<String, Integer> profileFields = new HashMap<>();
+		for (int i=0; i<n; i++)
+		{	PersonyzeCommand command = result[i];
+			switch (command.op)
+			{	case NAVIGATE:
+					seen.clear();
+					profileFields.clear();
+					break;
+				case PRODUCT_VIEWED:
+				case ARTICLE_VIEWED:
+				case ACTION_STATUS:
+					if (!seen.add(command))
+					{	result[i] = null;
+					}
+					break;
+				case USER_PROFILE:
+					Integer prev = profileFields.put(command.arg1, i);
+					if (prev != null)
+					{	result[prev] = null;
+					}
+					break;
+			}
+		}
+		ArrayList<PersonyzeCommand> compacted = new ArrayList<>(n);
+		for (PersonyzeCommand command : result)
+		{	if (command != null)
+			{	compacted.add(command);
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Approximate length of this command in the request, without serializing it.
+	 */
+	int approxLength()
+	{	int length = op.wire.length() + 4;
+		if (op == Op.NAVIGATE)
+		{	length += DOC_URN_PREFIX.length() + 3;
+		}
+		else if (op == Op.ACTION_STATUS)
+		{	length += 14;
+		}
+		if (arg1 != null)
+		{	length += arg1.length() + 3;
+		}
+		if (arg2 != null)
+		{	length += arg2.length() + 3;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,41 @@
+package com.personyze.androidsdk;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queue of commands with many producers and one consumer, that never blocks producers.
+ * A producer links its command with one atomic swap of the tail, so threads that log events at the same time don't wait for each other.
+ * Commands are linked through their own {@link PersonyzeCommand#next} field, so a command may be offered only once.
+ * Only one thread at a time may call {@link #poll()}.
+ */
+class PersonyzeCommandQueue
+{	private final AtomicReference<PersonyzeCommand> tail;
+	private volatile PersonyzeCommand head; // command that was already consumed, or the initial stub
+
+	PersonyzeCommandQueue()
+	{	head = new PersonyzeCommand(null, 0, null, null);
+		tail = new AtomicReference<>(head);
+	}
+
+	void offer(PersonyzeCommand command)
+	{	PersonyzeCommand prev = tail.getAndSet(command);
+		prev.next = command; // the consumer sees the command from now
+	}
+
+	PersonyzeCommand poll()
+	{	PersonyzeCommand next = head.next;
+		if (next == null)
+		{	return null;
+		}
+		head.next = null;
+		head = next; // next is consumed, but stays as the stub until the following one is taken
+		return next;
+	}
+
+	/**
+	 * Are there commands that {@link #poll()} will return.
+	 */
+	boolean hasPending()
+	{	return head.next != null;
+	}
+}
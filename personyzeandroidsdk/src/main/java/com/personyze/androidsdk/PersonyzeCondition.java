@@ -1,8 +1,8 @@
 package com.personyze.androidsdk;
 
-import android.content.SharedPreferences;
-
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 public class PersonyzeCondition implements Serializable
 {	final protected int id;
@@ -16,15 +16,21 @@ public class PersonyzeCondition implements Serializable
 	{	return (other instanceof PersonyzeCondition) && id==((PersonyzeCondition)other).id;
 	}
 
-	boolean fromStorage(SharedPreferences storage)
-	{	name = storage.getString("Condition Name "+id, null);
+	boolean fromStorage(PersonyzeDefinitionsCache cache)
+	{	ByteBuffer in = cache.get(PersonyzeDefinitionsCache.CONDITION, id);
+		try
+		{	name = in==null ? null : PersonyzeDefinitionsCache.readString(in);
+		}
+		catch (BufferUnderflowException e)
+		{	name = null;
+		}
 		return name != null;
 	}
 
-	void toStorage(SharedPreferences storage)
-	{	SharedPreferences.Editor editor = storage.edit();
-		editor.putString("Condition Name "+id, name);
-		editor.apply();
+	void toStorage(PersonyzeDefinitionsCache cache)
+	{	PersonyzeDefinitionsCache.Out out = new PersonyzeDefinitionsCache.Out();
+		out.writeString(name);
+		cache.put(PersonyzeDefinitionsCache.CONDITION, id, out);
 	}
 
 	public int getId()
@@ -0,0 +1,328 @@
+package com.personyze.androidsdk;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cached definitions of conditions, actions and placeholders, in one binary file.
+ * <p>
+ *     Format (big-endian): MAGIC, FORMAT_VERSION, number of records, index entries (kind byte, id int, offset int, length int, last access time in seconds int), and the records.
+ *     Strings in records are length-prefixed UTF-8, with length -1 for null.
+ * </p>
+ * <p>
+ *     The file is memory-mapped read-only, so restoring one object reads only its record.
+ *     Changes are kept in memory till {@link #commit()}, that writes a new file, and renames it over the old one, so the file is always complete.
+ *     File of unknown format is ignored, and replaced on next commit.
+ * </p>
+ * <p>
+ *     The cache holds up to MAX_RECORDS records of up to MAX_BYTES total. When it's bigger, the least recently used records are dropped on commit.
+ * </p>
+ */
+class PersonyzeDefinitionsCache
+{	static final byte CONDITION = 1;
+	static final byte ACTION = 2;
+	static final byte PLACEHOLDER = 3;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x505a4443; // "PZDC"
+	private static final int FORMAT_VERSION = 3; // 2: action content is in PersonyzeBlobStore, 3: access time in index
+	private static final int HEADER_SIZE = 12;
+	private static final int INDEX_ENTRY_SIZE = 17;
+	private static final int MAX_RECORDS = 1000;
+	private static final int MAX_BYTES = 1024*1024;
+
+	/**
+	 * Record that is being encoded.
+	 */
+	static class Out extends ByteArrayOutputStream
+	{	void writeInt(int value)
+		{	write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		void writeString(String value)
+		{	if (value == null)
+			{	writeInt(-1);
+			}
+			else
+			{	byte[] bytes = value.getBytes(UTF8);
+				writeInt(bytes.length);
+				write(bytes, 0, bytes.length);
+			}
+		}
+	}
+
+	private final File file;
+	private MappedByteBuffer mapped;
+	private final HashMap<Long, Long> index = new HashMap<>(); // key(kind, id) -> offset<<32 | length
+	private final HashMap<Long, byte[]> changed = new HashMap<>(); // records that were put or removed (null) since last commit
+	private final HashMap<Long, Integer> accessTimes = new HashMap<>(); // key -> seconds
+	private int nHits; // get() found the record
+	private int nMisses;
+	private int nEvicted; // records dropped on commit, because the cache was full
+
+	PersonyzeDefinitionsCache(File file)
+	{	this.file = file;
+	}
+
+	private static long key(byte kind, int id)
+	{	return ((long)kind << 32) | (id & 0xFFFFFFFFL);
+	}
+
+	private static int now()
+	{	return (int)(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Read length-prefixed UTF-8 string, with length -1 for null.
+	 * @throws BufferUnderflowException If the length is past the end of the buffer, so the cache is corrupt.
+	 */
+	static String readString(ByteBuffer in)
+	{	int length = in.getInt();
+		if (length < 0)
+		{	return null;
+		}
+		if (length > in.remaining())
+		{	throw new BufferUnderflowException(); // corrupt length, so don't allocate it
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Map the file, and read its index.
+	 */
+	synchronized void open()
+	{	mapped = null;
+		index.clear();
+		changed.clear();
+		accessTimes.clear();
+		if (!file.exists())
+		{	return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+		{	FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			MappedByteBuffer m = channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // stays valid after the channel is closed
+			if (size<HEADER_SIZE || m.getInt()!=MAGIC || m.getInt()!=FORMAT_VERSION)
+			{	return;
+			}
+			int n = m.getInt();
+			if (n<0 || HEADER_SIZE + (long)n*INDEX_ENTRY_SIZE > size)
+			{	throw new IOException("Corrupt index");
+			}
+			for (int i=0; i<n; i++)
+			{	byte kind = m.get();
+				int id = m.getInt();
+				int offset = m.getInt();
+				int length = m.getInt();
+				int accessTime = m.getInt();
+				if (offset<0 || length<0 || (long)offset+length > size)
+				{	throw new IOException("Corrupt index");
+				}
+				index.put(key(kind, id), ((long)offset << 32) | length);
+				accessTimes.put(key(kind, id), accessTime);
+			}
+			mapped = m;
+		}
+		catch (IOException e)
+		{	Log.e("Personyze", "Couldn't read definitions cache: "+e.getLocalizedMessage());
+			index.clear();
+			accessTimes.clear();
+		}
+	}
+
+	/**
+	 * @return Record, or null if it's not cached.
+	 */
+	synchronized ByteBuffer get(byte kind, int id)
+	{	ByteBuffer record = peek(kind, id);
+		if (record == null)
+		{	nMisses++;
+			return null;
+		}
+		nHits++;
+		accessTimes.put(key(kind, id), now()); // saved on next commit
+		return record;
+	}
+
+	/**
+	 * Like {@link #get(byte, int)}, but doesn't count as access.
+	 */
+	synchronized ByteBuffer peek(byte kind, int id)
+	{	long key = key(kind, id);
+		ByteBuffer record = null;
+		if (changed.containsKey(key))
+		{	byte[] data = changed.get(key);
+			if (data != null)
+			{	record = ByteBuffer.wrap(data);
+			}
+		}
+		else
+		{	Long location = index.get(key);
+			if (location != null)
+			{	record = slice(location);
+			}
+		}
+		return record;
+	}
+
+	/**
+	 * IDs of all the records of this kind.
+	 */
+	synchronized ArrayList<Integer> ids(byte kind)
+	{	ArrayList<Integer> ids = new ArrayList<>();
+		for (long key : index.keySet())
+		{	if ((byte)(key >>> 32)==kind && !changed.containsKey(key))
+			{	ids.add((int)key);
+			}
+		}
+		for (Map.Entry<Long, byte[]> entry : changed.entrySet())
+		{	if ((byte)(entry.getKey() >>> 32)==kind && entry.getValue()!=null)
+			{	ids.add((int)(long)entry.getKey());
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Number of {@link #get(byte, int)} calls that found the record, since this object was created.
+	 */
+	synchronized int hitCount()
+	{	return nHits;
+	}
+
+	synchronized int missCount()
+	{	return nMisses;
+	}
+
+	/**
+	 * Number of least recently used records that were dropped on commit, because the cache was full.
+	 */
+	synchronized int evictionCount()
+	{	return nEvicted;
+	}
+
+	private ByteBuffer slice(long location)
+	{	ByteBuffer record = mapped.duplicate();
+		int offset = (int)(location >>> 32);
+		record.position(offset);
+		record.limit(offset + (int)location);
+		return record.slice();
+	}
+
+	synchronized void put(byte kind, int id, Out record)
+	{	changed.put(key(kind, id), record.toByteArray());
+		accessTimes.put(key(kind, id), now());
+	}
+
+	synchronized void remove(byte kind, int id)
+	{	changed.put(key(kind, id), null);
+	}
+
+	/**
+	 * Forget all the records, and delete the file.
+	 */
+	synchronized void clear()
+	{	mapped = null;
+		index.clear();
+		changed.clear();
+		accessTimes.clear();
+		if (file.exists() && !file.delete())
+		{	Log.e("Personyze", "Couldn't delete definitions cache");
+		}
+	}
+
+	private int accessTime(long key)
+	{	Integer time = accessTimes.get(key);
+		return time==null ? 0 : time;
+	}
+
+	/**
+	 * Write the changes. Unchanged records are copied from the old file as they are.
+	 * If there are more records than MAX_RECORDS, or they take more than MAX_BYTES, the least recently used ones are dropped.
+	 */
+	synchronized void commit() throws IOException
+	{	if (changed.isEmpty())
+		{	return;
+		}
+		ArrayList<Long> keys = new ArrayList<>(index.size() + changed.size());
+		final HashMap<Long, ByteBuffer> records = new HashMap<>(index.size() + changed.size());
+		long totalBytes = 0;
+		for (Map.Entry<Long, Long> entry : index.entrySet())
+		{	if (!changed.containsKey(entry.getKey()))
+			{	ByteBuffer record = slice(entry.getValue());
+				keys.add(entry.getKey());
+				records.put(entry.getKey(), record);
+				totalBytes += record.remaining();
+			}
+		}
+		for (Map.Entry<Long, byte[]> entry : changed.entrySet())
+		{	if (entry.getValue() != null)
+			{	keys.add(entry.getKey());
+				records.put(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+				totalBytes += entry.getValue().length;
+			}
+		}
+		if (keys.size()>MAX_RECORDS || totalBytes>MAX_BYTES)
+		{	Collections.sort(keys, (a, b) -> Integer.compare(accessTime(b), accessTime(a))); // most recent first
+			while (keys.size()>MAX_RECORDS || totalBytes>MAX_BYTES)
+			{	long key = keys.remove(keys.size()-1);
+				totalBytes -= records.remove(key).remaining();
+				nEvicted++;
+			}
+		}
+		int n = keys.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + n*INDEX_ENTRY_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putInt(n);
+		int offset = header.capacity();
+		for (int i=0; i<n; i++)
+		{	long key = keys.get(i);
+			int length = records.get(key).remaining();
+			header.put((byte)(key >>> 32));
+			header.putInt((int)key);
+			header.putInt(offset);
+			header.putInt(length);
+			header.putInt(accessTime(key));
+			offset += length;
+		}
+		header.flip();
+		File tmp = new File(file.getPath()+".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp))
+		{	FileChannel channel = out.getChannel();
+			while (header.hasRemaining())
+			{	channel.write(header);
+			}
+			for (long key : keys)
+			{	ByteBuffer record = records.get(key);
+				while (record.hasRemaining())
+				{	channel.write(record);
+				}
+			}
+			out.getFD().sync();
+		}
+		if (!tmp.renameTo(file))
+		{	throw new IOException("Couldn't replace definitions cache");
+		}
+		open();
+	}
+}
@@ -1,8 +1,10 @@
 package com.personyze.androidsdk;
 
+import java.io.UnsupportedEncodingException;
+
 public class PersonyzeError extends Exception
-{	enum Type
-	{	OTHER, MALFORMED_API_KEY, REQUEST_TOO_BIG, HTTP_401, HTTP_500, HTTP_503
+{	public enum Type
+	{	OTHER, MALFORMED_API_KEY, REQUEST_TOO_BIG, HTTP_401, HTTP_500, HTTP_503, TIMEOUT, NO_CONNECTION, CIRCUIT_OPEN
 	}
 
 	private Type type = Type.OTHER;
@@ -16,7 +18,47 @@ public class PersonyzeError extends Exception
 		this.type = type;
 	}
 
+	/**
+	 * Error for HTTP response with this status code.
+	 * @param body Response body. For status 500 it's the error message, if it's not empty.
+	 */
+	public static PersonyzeError forHttpStatus(int statusCode, byte[] body)
+	{	switch (statusCode)
+		{	case 500:
+				String message = null;
+				if (body != null)
+				{	try
+					{	message = new String(body, "utf-8");
+					}
+					catch (UnsupportedEncodingException e)
+					{	// not interesting
+					}
+				}
+				return new PersonyzeError(message==null || message.length()==0 ? "HTTP request failed" : message, Type.HTTP_500);
+			case 503:
+				return new PersonyzeError("Service temporarily unavailable", Type.HTTP_503);
+			case 401:
+				return new PersonyzeError("Invalid API key", Type.HTTP_401);
+			default:
+				return new PersonyzeError("HTTP request failed with status "+statusCode);
+		}
+	}
+
 	public Type getType()
 	{	return type;
 	}
+
+	/**
+	 * The same request can succeed if repeated later.
+	 */
+	boolean isRetryable()
+	{	return type==Type.HTTP_503 || type==Type.TIMEOUT || type==Type.NO_CONNECTION || type==Type.CIRCUIT_OPEN;
+	}
+
+	/**
+	 * The same request will never succeed, so there's no reason to keep it.
+	 */
+	boolean isFatal()
+	{	return type==Type.HTTP_401 || type==Type.MALFORMED_API_KEY;
+	}
 }
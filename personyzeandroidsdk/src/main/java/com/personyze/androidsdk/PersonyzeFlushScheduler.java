@@ -0,0 +1,167 @@
+package com.personyze.androidsdk;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when to send queued commands without waiting for the application to call getResult() or done().
+ * Flush happens when number of queued commands, or their approximate size reaches the limit, or when the oldest command waited maxDelayMillis.
+ * While a flush is in progress, no new flush is started. Instead it's started after the current one completes.
+ */
+class PersonyzeFlushScheduler
+{	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Runnable onFlush;
+	private final Runnable fire = this::fire;
+	private volatile int maxCommands;
+	private volatile int maxBytes;
+	private volatile long maxDelayMillis;
+	private final AtomicInteger nCommands = new AtomicInteger();
+	private final AtomicInteger nBytes = new AtomicInteger();
+	private long scheduledAt; // 0 if not scheduled
+	private int nInFlight;
+	private boolean deferred;
+
+	PersonyzeFlushScheduler(Runnable onFlush)
+	{	this.onFlush = onFlush;
+	}
+
+	synchronized void configure(int maxCommands, int maxBytes, long maxDelayMillis)
+	{	this.maxCommands = maxCommands;
+		this.maxBytes = maxBytes;
+		this.maxDelayMillis = maxDelayMillis;
+		cancel();
+		if (nCommands.get() > 0)
+		{	check();
+		}
+	}
+
+	boolean isEnabled()
+	{	return maxCommands>0 || maxBytes>0 || maxDelayMillis>0;
+	}
+
+	/**
+	 * A command was queued. Is called by producer threads, so takes the lock only when a flush is to be scheduled.
+	 * @param length Approximate length of the command in the request.
+	 */
+	void commandAdded(int length)
+	{	int n = nCommands.incrementAndGet();
+		int bytes = nBytes.addAndGet(length);
+		int maxBytes = this.maxBytes;
+		if (n==1 || n==maxCommands || maxBytes>0 && bytes>=maxBytes && bytes-length<maxBytes)
+		{	synchronized (this)
+			{	check();
+			}
+		}
+	}
+
+	/**
+	 * Queued commands were taken for sending.
+	 * @param n How many.
+	 */
+	synchronized void commandsTaken(int n)
+	{	cancel();
+		nBytes.set(0);
+		int count;
+		do
+		{	count = nCommands.get();
+		} while (!nCommands.compareAndSet(count, Math.max(0, count-n))); // not below 0, if some of them were not counted
+		if (count-n > 0)
+		{	check(); // commands that were queued while taking
+		}
+	}
+
+	/**
+	 * Commands left by previous process were put to the queue. They're counted like added ones.
+	 * @param n How many.
+	 * @param length Their approximate total length.
+	 */
+	synchronized void commandsRestored(int n, int length)
+	{	if (n > 0)
+		{	nCommands.addAndGet(n);
+			nBytes.addAndGet(length);
+			check();
+		}
+	}
+
+	/**
+	 * Commands that were taken, were put back to the queue, because sending them failed.
+	 * The next flush is not scheduled sooner than maxDelayMillis, to give the server time to recover.
+	 * @param n How many.
+	 * @param length Their approximate total length.
+	 */
+	synchronized void commandsReturned(int n, int length)
+	{	nCommands.addAndGet(n);
+		nBytes.addAndGet(length);
+		if (maxDelayMillis > 0)
+		{	schedule(maxDelayMillis);
+		}
+	}
+
+	/**
+	 * Don't flush now, but try again after this delay.
+	 */
+	synchronized void postpone(long delayMillis)
+	{	schedule(delayMillis);
+	}
+
+	synchronized void flushStarted()
+	{	nInFlight++;
+	}
+
+	synchronized void flushFinished()
+	{	nInFlight--;
+		if (nInFlight==0 && deferred)
+		{	deferred = false;
+			if (nCommands.get() > 0)
+			{	schedule(0);
+			}
+		}
+		else if (nInFlight==0 && nCommands.get()>0)
+		{	check(); // commands that were queued during the flush
+		}
+	}
+
+	private void check()
+	{	int maxCommands = this.maxCommands;
+		int maxBytes = this.maxBytes;
+		if (maxCommands>0 && nCommands.get()>=maxCommands || maxBytes>0 && nBytes.get()>=maxBytes)
+		{	schedule(0);
+		}
+		else if (maxDelayMillis > 0)
+		{	schedule(maxDelayMillis);
+		}
+	}
+
+	private void schedule(long delayMillis)
+	{	long at = SystemClock.uptimeMillis() + delayMillis;
+		if (scheduledAt==0 || at<scheduledAt)
+		{	handler.removeCallbacks(fire);
+			handler.postDelayed(fire, delayMillis);
+			scheduledAt = at;
+		}
+	}
+
+	private void cancel()
+	{	if (scheduledAt != 0)
+		{	handler.removeCallbacks(fire);
+			scheduledAt = 0;
+		}
+	}
+
+	private void fire()
+	{	synchronized (this)
+		{	scheduledAt = 0;
+			if (nInFlight > 0)
+			{	deferred = true; // back off while a request is in flight
+				return;
+			}
+			if (nCommands.get() == 0)
+			{	return;
+			}
+		}
+		onFlush.run();
+	}
+}
@@ -1,58 +1,284 @@
 package com.personyze.androidsdk;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.os.SystemClock;
 import android.util.Base64;
-import android.widget.ImageView;
-
-import com.android.volley.NetworkResponse;
-import com.android.volley.ParseError;
-import com.android.volley.Response;
-import com.android.volley.toolbox.HttpHeaderParser;
-import com.android.volley.toolbox.ImageRequest;
+import android.util.Log;
 
 import com.caverock.androidsvg.SVG;
 import com.caverock.androidsvg.SVGParseException;
 
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.TaskExecutors;
+import com.google.android.gms.tasks.Tasks;
 
-import com.android.volley.AuthFailureError;
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
+import com.personyze.androidsdk.PersonyzeRequestPolicy.Endpoint;
+import com.personyze.androidsdk.PersonyzeTransport.Lane;
 
 public class PersonyzeHttp
-{	private RequestQueue requestQueue;
+{	private static final int INTERACTIVE_LIMIT = 4;
+	private static final int BACKGROUND_LIMIT = 1;
+	private static final int BULK_LIMIT = 1;
+
+	private interface Starter<T>
+	{	Task<T> start();
+	}
+
+	private interface Attempt<T>
+	{	Task<T> start(int timeoutMillis);
+	}
+
+	/**
+	 * Requests of one lane that are running, and that wait for a free slot.
+	 */
+	private static class LaneQueue
+	{	final int limit;
+		int running;
+		final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+		LaneQueue(int limit)
+		{	this.limit = limit;
+		}
+	}
+
+	private final Executor executor; // where retries are scheduled
+	private PersonyzeTransport transport;
 	private String httpAuth;
 	private String apiKeyInUse;
 	public String apiKey;
+	int gzipMinBytes; // compress POST bodies at least this long, 0 = never
+	String gatewayUrl = PersonyzeTracker.GATEWAY_URL; // tests point it to a local server
+	private final HashMap<String, Task<String>> getsInFlight = new HashMap<>(); // lane, endpoint and path -> request, so identical GETs are sent once
+	private final EnumMap<Lane, LaneQueue> lanes = new EnumMap<>(Lane.class);
+	final PersonyzeCircuitBreaker breaker = new PersonyzeCircuitBreaker();
+	private final EnumMap<Endpoint, PersonyzeRequestPolicy> policies = new EnumMap<>(Endpoint.class);
+
+	public PersonyzeHttp()
+	{	this(TaskExecutors.MAIN_THREAD);
+	}
+
+	/**
+	 * @param executor Where to decide about retries, and start them. It doesn't block.
+	 */
+	PersonyzeHttp(Executor executor)
+	{	this.executor = executor;
+		lanes.put(Lane.INTERACTIVE, new LaneQueue(INTERACTIVE_LIMIT));
+		lanes.put(Lane.BACKGROUND, new LaneQueue(BACKGROUND_LIMIT));
+		lanes.put(Lane.BULK, new LaneQueue(BULK_LIMIT));
+		for (Endpoint endpoint : Endpoint.values())
+		{	policies.put(endpoint, PersonyzeRequestPolicy.defaultFor(endpoint));
+		}
+	}
 
 	public void setContext(Context context)
-	{	requestQueue = Volley.newRequestQueue(context);
+	{	if (transport == null)
+		{	transport = PersonyzeVolleyTransport.getShared(context);
+		}
+	}
+
+	/**
+	 * Stop the transport. Next {@link #setContext(Context)} will start the default one.
+	 */
+	void shutdown()
+	{	if (transport != null)
+		{	transport.shutdown();
+			transport = null;
+		}
+	}
+
+	void setTransport(PersonyzeTransport transport)
+	{	this.transport = transport;
+	}
+
+	/**
+	 * Timeout and retries for this kind of requests.
+	 * @param policy null to restore the default.
+	 */
+	synchronized void setPolicy(Endpoint endpoint, PersonyzeRequestPolicy policy)
+	{	policies.put(endpoint, policy!=null ? policy : PersonyzeRequestPolicy.defaultFor(endpoint));
+	}
+
+	private synchronized PersonyzeRequestPolicy getPolicy(Endpoint endpoint)
+	{	return policies.get(endpoint);
 	}
 
 	public Task<String> get(String path)
-	{	return fetch(path, null, false);
+	{	return get(path, Lane.INTERACTIVE, Endpoint.METADATA);
+	}
+
+	/**
+	 * If the same GET is already in progress, return its task instead of sending another one.
+	 * Only GETs of the same lane and endpoint are shared, so a caller doesn't inherit queueing and timeouts of another lane.
+	 */
+	public Task<String> get(final String path, Lane lane, Endpoint endpoint)
+	{	final String key = lane+" "+endpoint+" "+path;
+		synchronized (getsInFlight)
+		{	Task<String> task = getsInFlight.get(key);
+			if (task == null)
+			{	final Task<String> newTask = fetch(path, null, false, lane, endpoint);
+				if (!newTask.isComplete())
+				{	getsInFlight.put(key, newTask);
+					newTask.addOnCompleteListener
+					(	task2 ->
+						{	synchronized (getsInFlight)
+							{	if (getsInFlight.get(key) == newTask)
+								{	getsInFlight.remove(key);
+								}
+							}
+						}
+					);
+				}
+				task = newTask;
+			}
+			return task;
+		}
 	}
 
 	public Task<String> post(String path, final String postData)
-	{	return fetch(path, postData, false);
+	{	try
+		{	return fetch(path, postData.getBytes("utf-8"), false, Lane.INTERACTIVE, Endpoint.TRACKER);
+		}
+		catch (UnsupportedEncodingException e)
+		{	final TaskCompletionSource<String> asyncResult = new TaskCompletionSource<>();
+			asyncResult.setException(new PersonyzeError("Encoding problem"));
+			return asyncResult.getTask();
+		}
+	}
+
+	/**
+	 * POST body that is already UTF-8 encoded.
+	 */
+	Task<String> post(String path, byte[] postData, Lane lane)
+	{	return fetch(path, postData, false, lane, Endpoint.TRACKER);
 	}
 
 	public Task<String> delete(String path)
-	{	return fetch(path, null, true);
+	{	return delete(path, Lane.INTERACTIVE, Endpoint.METADATA);
+	}
+
+	public Task<String> delete(String path, Lane lane, Endpoint endpoint)
+	{	return fetch(path, null, true, lane, endpoint);
+	}
+
+	/**
+	 * Start the request when its lane has a free slot, so a lane full of slow requests doesn't delay the others.
+	 */
+	private <T> Task<T> inLane(Lane lane, final Starter<T> starter)
+	{	final LaneQueue queue = lanes.get(lane);
+		final TaskCompletionSource<T> asyncResult = new TaskCompletionSource<>();
+		Runnable run = () ->
+		{	Task<T> started;
+			try
+			{	started = starter.start();
+			}
+			catch (RuntimeException e)
+			{	// like RejectedExecutionException from transport that was shut down
+				asyncResult.setException(new PersonyzeError("Couldn't start request: "+e.getLocalizedMessage()));
+				laneFinished(queue);
+				return;
+			}
+			started.addOnCompleteListener
+			(	task ->
+				{	laneFinished(queue);
+					if (task.getException() != null)
+					{	asyncResult.setException(task.getException());
+					}
+					else
+					{	asyncResult.setResult(task.getResult());
+					}
+				}
+			);
+		};
+		synchronized (queue)
+		{	if (queue.running >= queue.limit)
+			{	queue.waiting.add(run);
+				return asyncResult.getTask();
+			}
+			queue.running++;
+		}
+		run.run();
+		return asyncResult.getTask();
 	}
 
-	private Task<String> fetch(String path, final String postData, boolean isDelete)
+	private static void laneFinished(LaneQueue queue)
+	{	Runnable next;
+		synchronized (queue)
+		{	next = queue.waiting.poll();
+			if (next == null)
+			{	queue.running--;
+			}
+		}
+		if (next != null)
+		{	next.run();
+		}
+	}
+
+	static byte[] gzip(byte[] data) throws IOException
+	{	ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length/4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(buffer))
+		{	gzip.write(data);
+		}
+		return buffer.toByteArray();
+	}
+
+	static byte[] gunzip(byte[] data) throws IOException
+	{	ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length * 4);
+		try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data)))
+		{	byte[] chunk = new byte[8192];
+			int n;
+			while ((n = gzip.read(chunk)) != -1)
+			{	buffer.write(chunk, 0, n);
+			}
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Decode downloaded image, including SVG.
+	 * @param contentType Value of Content-Type header.
+	 * @throws PersonyzeError If the image couldn't be decoded.
+	 */
+	public static Bitmap decodeImage(byte[] data, String contentType) throws PersonyzeError
+	{	if (contentType!=null && contentType.equals("image/svg+xml"))
+		{	try
+			{	SVG svg = SVG.getFromString(new String(data));
+				int h = (int)svg.getDocumentHeight();
+				int w = (int)svg.getDocumentWidth();
+				Bitmap image = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_4444); // transparent
+				Canvas canvas = new Canvas(image);
+				svg.renderToCanvas(canvas);
+				return image;
+			}
+			catch (SVGParseException e)
+			{	throw new PersonyzeError("Invalid SVG image: "+e.getLocalizedMessage());
+			}
+		}
+		Bitmap image = BitmapFactory.decodeByteArray(data, 0, data.length);
+		if (image == null)
+		{	throw new PersonyzeError("Couldn't decode image");
+		}
+		return image;
+	}
+
+	private Task<String> fetch(String path, final byte[] postData, final boolean isDelete, final Lane lane, Endpoint endpoint)
 	{	final TaskCompletionSource<String> asyncResult = new TaskCompletionSource<>();
-		if (apiKey != null)
+		final PersonyzeTransport transport = this.transport; // the request can wait in its lane, while shutdown() resets this.transport
+		if (apiKey!=null && transport!=null)
 		{	if (!apiKey.equals(apiKeyInUse))
 			{	if (apiKey.length() != 40)
 				{	asyncResult.setException(new PersonyzeError("API Key must be 40 characters", PersonyzeError.Type.MALFORMED_API_KEY));
@@ -60,73 +286,56 @@ public class PersonyzeHttp
 				}
 				apiKeyInUse = apiKey;
 				String creds = "api:" + apiKeyInUse;
-				httpAuth = "Basic " + Base64.encodeToString(creds.getBytes(), Base64.DEFAULT);
+				httpAuth = "Basic " + Base64.encodeToString(creds.getBytes(), Base64.NO_WRAP);
 			}
-			requestQueue.add
-			(	new StringRequest
-				(	isDelete ? Request.Method.DELETE : postData==null ? Request.Method.GET : Request.Method.POST,
-					PersonyzeTracker.GATEWAY_URL+path,
-					response ->
-					{	if (response!=null && response.length()>0)
-						{	asyncResult.setResult(response);
-						}
-						else
-						{	asyncResult.setException(new PersonyzeError("Empty response from server"));
-						}
-					},
-					error->
-					{	String message = null;
-						PersonyzeError.Type type = PersonyzeError.Type.OTHER;
-						if (error.networkResponse != null)
-						{	if (error.networkResponse.statusCode == 500)
-							{	type = PersonyzeError.Type.HTTP_500;
-								try
-								{	message = new String(error.networkResponse.data, "utf-8");
-								}
-								catch (UnsupportedEncodingException e)
-								{	// not interesting
-								}
-							}
-							else if (error.networkResponse.statusCode == 503)
-							{	type = PersonyzeError.Type.HTTP_503;
-								message = "Service temporarily unavailable";
-							}
-							else if (error.networkResponse.statusCode == 401)
-							{	type = PersonyzeError.Type.HTTP_401;
-								message = "Invalid API key";
-							}
-						}
-						if (message == null)
-						{	message = error.getLocalizedMessage();
-							if (message == null)
-							{	message = "HTTP request failed";
-							}
-						}
-						asyncResult.setException(new PersonyzeError(message, type));
+			final HashMap<String, String> headers = new HashMap<>();
+			headers.put("Authorization", httpAuth);
+			headers.put("User-Agent", PersonyzeTracker.USER_AGENT);
+			final String url = gatewayUrl+path;
+			byte[] body = postData;
+			if (postData != null)
+			{	if (gzipMinBytes>0 && postData.length>=gzipMinBytes)
+				{	try
+					{	body = gzip(postData);
+						headers.put("Content-Encoding", "gzip");
 					}
-				)
-				{	@Override public String getBodyContentType()
-					{	return "application/json; charset=utf-8";
+					catch (IOException e)
+					{	asyncResult.setException(new PersonyzeError("Encoding problem"));
+						return asyncResult.getTask();
 					}
-
-					@Override public byte[] getBody() throws AuthFailureError
-					{	if (postData != null)
-						{	try
-							{	return postData.getBytes("utf-8");
+				}
+				headers.put("Content-Type", "application/json; charset=utf-8");
+			}
+			final byte[] finalBody = body;
+			return withRetry
+			(	getPolicy(endpoint),
+				timeoutMillis ->
+				{	final PersonyzeCircuitBreaker.Permit permit = breaker.allowRequest();
+					if (permit == null)
+					{	return Tasks.forException(new PersonyzeError("Personyze server is unavailable, will try later", PersonyzeError.Type.CIRCUIT_OPEN));
+					}
+					Task<String> task;
+					if (isDelete)
+					{	task = inLane(lane, () -> transport.delete(url, headers, lane, timeoutMillis));
+					}
+					else if (finalBody == null)
+					{	task = inLane(lane, () -> transport.get(url, headers, lane, timeoutMillis));
+					}
+					else
+					{	task = inLane(lane, () -> transport.post(url, headers, finalBody, lane, timeoutMillis));
+					}
+					return task.continueWith
+					(	task2 ->
+						{	breaker.record(permit, task2.getException());
+							if (task2.getException() != null)
+							{	throw task2.getException();
 							}
-							catch (UnsupportedEncodingException e)
-							{	throw new AuthFailureError("Encoding problem");
+							if (task2.getResult()==null || task2.getResult().length()==0)
+							{	throw new PersonyzeError("Empty response from server");
 							}
+							return task2.getResult();
 						}
-						return null;
-					}
-
-					@Override public Map<String, String> getHeaders()
-					{	HashMap<String, String> params = new HashMap<>();
-						params.put("Authorization", httpAuth);
-						params.put("User-Agent", PersonyzeTracker.USER_AGENT);
-						return params;
-					}
+					);
 				}
 			);
 		}
@@ -136,69 +345,54 @@ public class PersonyzeHttp
 		return asyncResult.getTask();
 	}
 
-	public Task<Bitmap> getBitmap(final String href)
-	{	final TaskCompletionSource<Bitmap> asyncResult = new TaskCompletionSource<>();
-		requestQueue.add
-		(	new ImageRequest
-			(	href,
-				asyncResult::setResult,
-				0,
-				0,
-				ImageView.ScaleType.CENTER,
-				null,
-				error->
-				{	String message = null;
-					PersonyzeError.Type type = PersonyzeError.Type.OTHER;
-					if (error.networkResponse != null)
-					{	if (error.networkResponse.statusCode == 500)
-						{	type = PersonyzeError.Type.HTTP_500;
-							try
-							{	message = new String(error.networkResponse.data, "utf-8");
-							}
-							catch (UnsupportedEncodingException e)
-							{	// not interesting
-							}
-						}
-						else if (error.networkResponse.statusCode == 503)
-						{	type = PersonyzeError.Type.HTTP_503;
-							message = "Service temporarily unavailable";
-						}
-						else if (error.networkResponse.statusCode == 401)
-						{	type = PersonyzeError.Type.HTTP_401;
-							message = "Invalid API key";
-						}
-					}
-					if (message == null)
-					{	message = error.getLocalizedMessage();
-						if (message == null)
-						{	message = "HTTP request failed";
-						}
-					}
-					asyncResult.setException(new PersonyzeError(message, type));
-				}
-			)
-			{	@Override protected Response<Bitmap> parseNetworkResponse(NetworkResponse response)
-				{	if (response.headers != null)
-					{	String type = response.headers.get("Content-Type");
-						if (type!=null && type.equals("image/svg+xml"))
-						{	try
-							{	SVG svg = SVG.getFromString(new String(response.data));
-								int h = (int)svg.getDocumentHeight();
-								int w = (int)svg.getDocumentWidth();
-								Bitmap image = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_4444); // transparent
-								Canvas canvas = new Canvas(image);
-								svg.renderToCanvas(canvas);
-								return Response.success(image, HttpHeaderParser.parseCacheHeaders(response));
-							}
-							catch (SVGParseException error)
-							{	return Response.error(new ParseError(error));
-							}
-						}
+	/**
+	 * Send the request, and if it fails with retryable error, repeat it after growing delay, up to policy.maxRetries times, and within policy.deadlineMillis.
+	 * Requests that the circuit breaker stopped are not retried, because the breaker decides when to try again.
+	 */
+	private <T> Task<T> withRetry(final PersonyzeRequestPolicy policy, final Attempt<T> once)
+	{	return withRetry(policy, SystemClock.elapsedRealtime(), 0, once);
+	}
+
+	private <T> Task<T> withRetry(final PersonyzeRequestPolicy policy, final long startTime, final int attempt, final Attempt<T> once)
+	{	return once.start(policy.timeoutFor(attempt, SystemClock.elapsedRealtime()-startTime)).continueWithTask
+		(	executor,
+			task ->
+			{	Exception e = task.getException();
+				if (e instanceof PersonyzeError && ((PersonyzeError)e).isRetryable() && ((PersonyzeError)e).getType()!=PersonyzeError.Type.CIRCUIT_OPEN)
+				{	long delayMillis = PersonyzeBackoff.delayMillis(attempt);
+					if (policy.canRetry(attempt, SystemClock.elapsedRealtime()-startTime, delayMillis))
+					{	Log.e("Personyze", "Request failed, will retry: "+e.getLocalizedMessage());
+						return PersonyzeBackoff.delay(delayMillis).continueWithTask(executor, task2 -> withRetry(policy, startTime, attempt+1, once));
 					}
-					return super.parseNetworkResponse(response);
 				}
+				return task;
 			}
 		);
-		return asyncResult.getTask();
+	}
+
+	/**
+	 * Open keep-alive connection to Personyze REST gateway. It goes in INTERACTIVE lane, because it opens the connection that the first result request will reuse.
+	 */
+	Task<Void> warmUp()
+	{	final PersonyzeTransport transport = this.transport;
+		if (transport == null)
+		{	final TaskCompletionSource<Void> asyncResult = new TaskCompletionSource<>();
+			asyncResult.setException(new PersonyzeError("PersonyzeTracker not initialized"));
+			return asyncResult.getTask();
+		}
+		final HashMap<String, String> headers = new HashMap<>();
+		headers.put("User-Agent", PersonyzeTracker.USER_AGENT);
+		final int timeoutMillis = getPolicy(Endpoint.TRACKER).timeoutMillis;
+		return inLane(Lane.INTERACTIVE, () -> transport.warmUp(gatewayUrl, headers, timeoutMillis));
+	}
+
+	public Task<Bitmap> getBitmap(final String href)
+	{	final PersonyzeTransport transport = this.transport;
+		if (transport == null)
+		{	final TaskCompletionSource<Bitmap> asyncResult = new TaskCompletionSource<>();
+			asyncResult.setException(new PersonyzeError("PersonyzeTracker not initialized"));
+			return asyncResult.getTask();
+		}
+		return withRetry(getPolicy(Endpoint.IMAGE), timeoutMillis -> inLane(Lane.BULK, () -> transport.getBitmap(href, timeoutMillis)));
 	}
 }
@@ -0,0 +1,237 @@
+package com.personyze.androidsdk;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Append-only on-disk log of tracker commands, that were not yet acknowledged by Personyze server.
+ * Each command is one JSON array per line in the current segment file. When commands are taken for sending, the segments that hold them are sealed,
+ * and they're deleted only after the server accepted the request. Segments that remain on disk are replayed on next start.
+ * Threads that append don't touch the disk: commands are written and synced on the executor, and {@link #seal()} writes the ones that are still waiting.
+ */
+class PersonyzeJournal
+{	private static final String SEGMENT_PREFIX = "Segment ";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final int SYNC_EVERY_COMMANDS = 16;
+	private static final long SYNC_EVERY_MILLIS = 1000;
+
+	private final File dir;
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<PersonyzeCommand> unwritten = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean writeScheduled = new AtomicBoolean();
+	private final ArrayList<File> toReplay = new ArrayList<>();
+	private final ArrayList<File> pending = new ArrayList<>(); // segments, whose commands are in memory and not yet sent
+	private int nextSegment = 1;
+	private File current;
+	private FileOutputStream currentStream;
+	private Writer currentWriter;
+	private int nUnsynced;
+	private long lastSyncTime;
+
+	/**
+	 * @param executor Where to write. It must run tasks one at a time.
+	 */
+	PersonyzeJournal(File dir, Executor executor)
+	{	this.dir = dir;
+		this.executor = executor;
+		if (!dir.isDirectory() && !dir.mkdirs())
+		{	Log.e("Personyze", "Couldn't create journal directory");
+		}
+		File[] files = dir.listFiles();
+		if (files != null)
+		{	for (File file : files)
+			{	int n = segmentNumber(file);
+				if (n > 0)
+				{	toReplay.add(file);
+					if (n >= nextSegment)
+					{	nextSegment = n + 1;
+					}
+				}
+				else if (file.getName().endsWith(TMP_SUFFIX) && !file.delete())
+				{	Log.e("Personyze", "Couldn't delete journal segment");
+				}
+			}
+		}
+		Collections.sort(toReplay, (a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+	}
+
+	private static int segmentNumber(File file)
+	{	String name = file.getName();
+		return name.startsWith(SEGMENT_PREFIX) ? PersonyzeTracker.intVal(name.substring(SEGMENT_PREFIX.length())) : 0;
+	}
+
+	/**
+	 * Read commands left by previous process. Only the first call returns something.
+	 */
+	synchronized ArrayList<PersonyzeCommand> replay()
+	{	ArrayList<PersonyzeCommand> commands = new ArrayList<>();
+		for (File file : toReplay)
+		{	try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf-8")))
+			{	String line;
+				while ((line = reader.readLine()) != null)
+				{	try
+					{	JSONArray array = (JSONArray)new JSONTokener(line).nextValue();
+						String[] args = new String[array.length()];
+						for (int i=0; i<args.length; i++)
+						{	args[i] = array.isNull(i) ? null : array.getString(i);
+						}
+						PersonyzeCommand command = PersonyzeCommand.fromWire(args);
+						if (command != null)
+						{	commands.add(command);
+						}
+					}
+					catch (JSONException | ClassCastException e)
+					{	// torn write at the end of segment
+					}
+				}
+				pending.add(file);
+			}
+			catch (IOException e)
+			{	Log.e("Personyze", "Couldn't replay journal: "+e.getLocalizedMessage());
+			}
+		}
+		toReplay.clear();
+		return commands;
+	}
+
+	/**
+	 * Queue the command to be written. This doesn't block.
+	 */
+	void append(PersonyzeCommand command)
+	{	unwritten.add(command);
+		if (writeScheduled.compareAndSet(false, true))
+		{	executor.execute(this::write);
+		}
+	}
+
+	private synchronized void write()
+	{	writeScheduled.set(false); // commands appended from now schedule another write
+		writeUnwritten();
+	}
+
+	/**
+	 * Write the queued commands to current segment. Call with the monitor held.
+	 */
+	private void writeUnwritten()
+	{	if (unwritten.isEmpty())
+		{	return;
+		}
+		try
+		{	if (currentWriter == null)
+			{	current = new File(dir, SEGMENT_PREFIX+nextSegment++);
+				currentStream = new FileOutputStream(current, true);
+				currentWriter = new BufferedWriter(new OutputStreamWriter(currentStream, "utf-8"));
+			}
+			PersonyzeCommand command;
+			while ((command = unwritten.poll()) != null)
+			{	currentWriter.write(command.toJson());
+				currentWriter.write('\n');
+				nUnsynced++;
+			}
+			currentWriter.flush(); // survives process kill from now
+			long now = System.currentTimeMillis();
+			if (nUnsynced>=SYNC_EVERY_COMMANDS || lastSyncTime+SYNC_EVERY_MILLIS<=now)
+			{	currentStream.getFD().sync(); // survives power loss from now
+				nUnsynced = 0;
+				lastSyncTime = now;
+			}
+		}
+		catch (IOException e)
+		{	Log.e("Personyze", "Couldn't write journal: "+e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * All the commands that are in memory are about to be sent. Close current segment, and return all segments that hold them.
+	 * Pass the returned list to {@link #ack(List)} when the server accepted them.
+	 */
+	synchronized ArrayList<File> seal()
+	{	writeUnwritten();
+		if (currentWriter != null)
+		{	try
+			{	currentWriter.flush();
+				currentStream.getFD().sync();
+				currentWriter.close();
+			}
+			catch (IOException e)
+			{	Log.e("Personyze", "Couldn't close journal segment: "+e.getLocalizedMessage());
+			}
+			pending.add(current);
+			current = null;
+			currentStream = null;
+			currentWriter = null;
+			nUnsynced = 0;
+		}
+		ArrayList<File> sealed = new ArrayList<>(pending);
+		pending.clear();
+		return sealed;
+	}
+
+	/**
+	 * Sending failed, and the commands from these segments were put back to memory. They will be sealed again on next {@link #seal()}.
+	 */
+	synchronized void unseal(List<File> segments)
+	{	pending.addAll(0, segments);
+	}
+
+	/**
+	 * Some commands from these sealed segments were accepted by the server. Leave on disk only the remaining ones, so the accepted ones are not replayed.
+	 * They're written in place of the first segment, so they're replayed in their order.
+	 * @return Segments that hold the remaining commands, to use instead of the passed ones.
+	 */
+	synchronized ArrayList<File> replace(List<File> segments, List<PersonyzeCommand> remaining)
+	{	ArrayList<File> replaced = new ArrayList<>(1);
+		if (!remaining.isEmpty() && !segments.isEmpty())
+		{	File file = segments.get(0);
+			File tmp = new File(file.getPath()+TMP_SUFFIX);
+			try (FileOutputStream stream = new FileOutputStream(tmp))
+			{	Writer writer = new BufferedWriter(new OutputStreamWriter(stream, "utf-8"));
+				for (PersonyzeCommand command : remaining)
+				{	writer.write(command.toJson());
+					writer.write('\n');
+				}
+				writer.flush();
+				stream.getFD().sync();
+			}
+			catch (IOException e)
+			{	Log.e("Personyze", "Couldn't write journal: "+e.getLocalizedMessage());
+				return new ArrayList<>(segments); // better to replay the accepted commands than to lose the remaining ones
+			}
+			if (!tmp.renameTo(file))
+			{	Log.e("Personyze", "Couldn't write journal segment");
+				return new ArrayList<>(segments);
+			}
+			replaced.add(file);
+			segments = segments.subList(1, segments.size());
+		}
+		ack(segments);
+		return replaced;
+	}
+
+	synchronized void ack(List<File> segments)
+	{	for (File file : segments)
+		{	if (file.exists() && !file.delete())
+			{	Log.e("Personyze", "Couldn't delete journal segment");
+			}
+		}
+	}
+}
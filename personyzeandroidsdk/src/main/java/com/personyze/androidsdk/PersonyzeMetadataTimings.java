@@ -0,0 +1,20 @@
+package com.personyze.androidsdk;
+
+import android.os.SystemClock;
+
+/**
+ * How long loading names and content of conditions, actions and placeholders for one tracker response took, in milliseconds from its start.
+ * Parts that were not loaded are -1. Conditions, actions and placeholders the actions had last time are requested in parallel,
+ * so totalMillis is close to the slowest of them, and not their sum.
+ */
+class PersonyzeMetadataTimings
+{	private final long startTime = SystemClock.elapsedRealtime();
+	long conditionsMillis = -1;
+	long actionsMillis = -1;
+	long placeholdersMillis = -1;
+	long totalMillis = -1;
+
+	long sinceStart()
+	{	return SystemClock.elapsedRealtime() - startTime;
+	}
+}
@@ -0,0 +1,186 @@
+package com.personyze.androidsdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Tells when sending costs little battery, so requests that nobody waits for can wait for such time.
+ * It's cheap on unmetered network, or when the cellular radio is already active because of other traffic.
+ * Deferred work runs when connectivity changes (e.g. the device connects, or moves to Wi-Fi) or the radio becomes active, and it's cheap then, or after MAX_DEFER_MILLIS at most.
+ */
+class PersonyzeNetworkState
+{	static final long MAX_DEFER_MILLIS = 15*60*1000;
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Runnable fire = this::runDeferred;
+	private Context context;
+	private ConnectivityManager connectivity;
+	private ConnectivityManager.OnNetworkActiveListener listener; // since LOLLIPOP
+	private ConnectivityManager.NetworkCallback callback; // since LOLLIPOP
+	private BroadcastReceiver receiver; // before LOLLIPOP
+	private Runnable deferred;
+
+	synchronized void setContext(Context context)
+	{	if (connectivity == null)
+		{	this.context = context.getApplicationContext();
+			connectivity = (ConnectivityManager)this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		}
+	}
+
+	boolean isCheap()
+	{	ConnectivityManager connectivity = this.connectivity;
+		if (connectivity == null)
+		{	return true;
+		}
+		try
+		{	if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+			{	NetworkCapabilities capabilities = connectivity.getNetworkCapabilities(connectivity.getActiveNetwork());
+				if (capabilities==null || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED))
+				{	return false; // will wait for connection that reaches the internet
+				}
+				return capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) || connectivity.isDefaultNetworkActive();
+			}
+			return isCheapLegacy(connectivity);
+		}
+		catch (SecurityException e)
+		{	return true; // ACCESS_NETWORK_STATE was removed from the merged manifest
+		}
+	}
+
+	/**
+	 * Before M there's no getActiveNetwork(), so only the deprecated NetworkInfo tells whether the device is connected.
+	 */
+	@SuppressWarnings("deprecation")
+	private static boolean isCheapLegacy(ConnectivityManager connectivity)
+	{	android.net.NetworkInfo info = connectivity.getActiveNetworkInfo();
+		if (info==null || !info.isConnected())
+		{	return false; // will wait for connection
+		}
+		if (Build.VERSION.SDK_INT<Build.VERSION_CODES.JELLY_BEAN || !connectivity.isActiveNetworkMetered())
+		{	return true;
+		}
+		return Build.VERSION.SDK_INT>=Build.VERSION_CODES.LOLLIPOP && connectivity.isDefaultNetworkActive();
+	}
+
+	/**
+	 * Run the task now if it's cheap, or later. Only the last deferred task is kept, so pass the same kind of task each time.
+	 */
+	void runWhenCheap(Runnable task)
+	{	if (isCheap())
+		{	task.run();
+			return;
+		}
+		synchronized (this)
+		{	boolean wasDeferred = deferred != null;
+			deferred = task;
+			if (!wasDeferred)
+			{	handler.postDelayed(fire, MAX_DEFER_MILLIS);
+				listen();
+			}
+		}
+	}
+
+	/**
+	 * The deferred task is not needed anymore, e.g. because other flush took the commands.
+	 */
+	synchronized void cancelDeferred()
+	{	if (deferred != null)
+		{	deferred = null;
+			stopListening();
+		}
+	}
+
+	/**
+	 * Call with the monitor held.
+	 */
+	private void listen()
+	{	try
+		{	if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+			{	if (listener == null)
+				{	listener = this::runDeferredIfCheap;
+					callback = new ConnectivityManager.NetworkCallback()
+					{	@Override public void onAvailable(Network network)
+						{	runDeferredIfCheap();
+						}
+
+						@Override public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities)
+						{	runDeferredIfCheap();
+						}
+					};
+				}
+				connectivity.addDefaultNetworkActiveListener(listener);
+				connectivity.registerNetworkCallback(new NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(), callback);
+			}
+			else
+			{	listenLegacy();
+			}
+		}
+		catch (SecurityException e)
+		{	// ACCESS_NETWORK_STATE was removed from the merged manifest, so only the timer remains
+		}
+	}
+
+	/**
+	 * Before LOLLIPOP there are no network callbacks, and the deprecated CONNECTIVITY_ACTION broadcast is the only way to learn about connectivity changes.
+	 */
+	@SuppressWarnings("deprecation")
+	private void listenLegacy()
+	{	if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+		{	if (receiver == null)
+			{	receiver = new BroadcastReceiver()
+				{	@Override public void onReceive(Context context, Intent intent)
+					{	runDeferredIfCheap();
+					}
+				};
+			}
+			context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		}
+	}
+
+	/**
+	 * Call with the monitor held.
+	 */
+	private void stopListening()
+	{	handler.removeCallbacks(fire);
+		try
+		{	if (listener != null)
+			{	connectivity.removeDefaultNetworkActiveListener(listener);
+				connectivity.unregisterNetworkCallback(callback);
+			}
+			if (receiver != null)
+			{	context.unregisterReceiver(receiver);
+			}
+		}
+		catch (IllegalArgumentException | SecurityException e)
+		{	// was not registered
+		}
+	}
+
+	private void runDeferredIfCheap()
+	{	if (isCheap())
+		{	runDeferred();
+		}
+	}
+
+	private void runDeferred()
+	{	Runnable task;
+		synchronized (this)
+		{	task = deferred;
+			if (task == null)
+			{	return;
+			}
+			deferred = null;
+			stopListening();
+		}
+		task.run();
+	}
+}
@@ -1,8 +1,8 @@
 package com.personyze.androidsdk;
 
-import android.content.SharedPreferences;
-
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 public class PersonyzePlaceholder implements Serializable
 {	final protected int id;
@@ -18,19 +18,28 @@ public class PersonyzePlaceholder implements Serializable
 	{	return (other instanceof PersonyzePlaceholder) && id==((PersonyzePlaceholder)other).id;
 	}
 
-	boolean fromStorage(SharedPreferences storage)
-	{	name = storage.getString("Placeholder Name "+id, null);
-		htmlId = storage.getString("Placeholder HTML ID "+id, null);
-		unitsCountMax = storage.getInt("Placeholder Units Count Max "+id, 0);
+	boolean fromStorage(PersonyzeDefinitionsCache cache)
+	{	ByteBuffer in = cache.get(PersonyzeDefinitionsCache.PLACEHOLDER, id);
+		name = null;
+		if (in != null)
+		{	try
+			{	name = PersonyzeDefinitionsCache.readString(in);
+				htmlId = PersonyzeDefinitionsCache.readString(in);
+				unitsCountMax = in.getInt();
+			}
+			catch (BufferUnderflowException e)
+			{	name = null;
+			}
+		}
 		return name != null;
 	}
 
-	void toStorage(SharedPreferences storage)
-	{	SharedPreferences.Editor editor = storage.edit();
-		editor.putString("Placeholder Name "+id, name);
-		editor.putString("Placeholder HTML ID "+id, htmlId);
-		editor.putInt("Placeholder Units Count Max "+id, unitsCountMax);
-		editor.apply();
+	void toStorage(PersonyzeDefinitionsCache cache)
+	{	PersonyzeDefinitionsCache.Out out = new PersonyzeDefinitionsCache.Out();
+		out.writeString(name);
+		out.writeString(htmlId);
+		out.writeInt(unitsCountMax);
+		cache.put(PersonyzeDefinitionsCache.PLACEHOLDER, id, out);
 	}
 
 	public int getId()
@@ -0,0 +1,92 @@
+package com.personyze.androidsdk;
+
+/**
+ * Timeout and retries for one kind of requests. Set it with {@link PersonyzeTracker#setRequestPolicy(Endpoint, PersonyzeRequestPolicy)}.
+ * Requests are retried after errors that can go away: HTTP 503, timeout and no connection. Between retries the SDK waits 1, 2, 4... seconds, with random jitter.
+ * All the attempts and the waits between them fit in the deadline, if it's set. The last attempt gets the time that remains, and no retry starts with less than a second left.
+ */
+public class PersonyzeRequestPolicy
+{	public enum Endpoint
+	{	TRACKER, // events and results, "tracker-v1"
+		METADATA, // conditions, actions and placeholders
+		NOTIFICATION, // notification polling
+		IMAGE // notification images
+	}
+
+	static final int MIN_ATTEMPT_MILLIS = 1000;
+
+	public final int timeoutMillis;
+	public final int maxRetries;
+	public final float backoffMultiplier;
+	public final int deadlineMillis;
+
+	/**
+	 * Policy without deadline, so the worst case is the sum of all the timeouts and delays.
+	 * @param timeoutMillis Timeout of the first attempt.
+	 * @param maxRetries How many times to retry after the first attempt.
+	 * @param backoffMultiplier Timeout of each retry is this times the timeout of the previous attempt, like in Volley's DefaultRetryPolicy. Delays between attempts don't depend on it.
+	 * @throws IllegalArgumentException If timeoutMillis is not positive, maxRetries is negative, or backoffMultiplier is less than 1.
+	 */
+	public PersonyzeRequestPolicy(int timeoutMillis, int maxRetries, float backoffMultiplier)
+	{	this(timeoutMillis, maxRetries, backoffMultiplier, 0);
+	}
+
+	/**
+	 * @param deadlineMillis How long all the attempts can take together, including delays between them. 0 means no deadline.
+	 * @throws IllegalArgumentException If timeoutMillis is not positive, maxRetries or deadlineMillis is negative, or backoffMultiplier is less than 1.
+	 */
+	public PersonyzeRequestPolicy(int timeoutMillis, int maxRetries, float backoffMultiplier, int deadlineMillis)
+	{	if (timeoutMillis <= 0)
+		{	throw new IllegalArgumentException("timeoutMillis must be positive");
+		}
+		if (maxRetries < 0)
+		{	throw new IllegalArgumentException("maxRetries must not be negative");
+		}
+		if (!(backoffMultiplier >= 1)) // also NaN
+		{	throw new IllegalArgumentException("backoffMultiplier must be at least 1");
+		}
+		if (deadlineMillis < 0)
+		{	throw new IllegalArgumentException("deadlineMillis must not be negative");
+		}
+		this.timeoutMillis = timeoutMillis;
+		this.maxRetries = maxRetries;
+		this.backoffMultiplier = backoffMultiplier;
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	static PersonyzeRequestPolicy defaultFor(Endpoint endpoint)
+	{	switch (endpoint)
+		{	case TRACKER:
+				return new PersonyzeRequestPolicy(5000, 2, 1.5f, 10000); // the user can be waiting for the result
+			case METADATA:
+				return new PersonyzeRequestPolicy(5000, 2, 1.5f, 10000);
+			case NOTIFICATION:
+				return new PersonyzeRequestPolicy(5000, 0, 1); // will poll again anyway
+			default:
+				return new PersonyzeRequestPolicy(5000, 1, 1, 10000);
+		}
+	}
+
+	/**
+	 * @param attempt 0 for the first attempt.
+	 */
+	int timeoutFor(int attempt)
+	{	return (int)Math.min(timeoutMillis * Math.pow(backoffMultiplier, attempt), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param elapsedMillis Time since the first attempt started.
+	 * @return Timeout of this attempt, shortened to what remains till the deadline.
+	 */
+	int timeoutFor(int attempt, long elapsedMillis)
+	{	int timeout = timeoutFor(attempt);
+		return deadlineMillis>0 ? (int)Math.max(Math.min(timeout, deadlineMillis-elapsedMillis), 1) : timeout;
+	}
+
+	/**
+	 * Can the request be retried after this attempt failed, and after waiting delayMillis.
+	 */
+	boolean canRetry(int attempt, long elapsedMillis, long delayMillis)
+	{	return attempt<maxRetries && (deadlineMillis==0 || elapsedMillis+delayMillis+MIN_ATTEMPT_MILLIS <= deadlineMillis);
+	}
+}
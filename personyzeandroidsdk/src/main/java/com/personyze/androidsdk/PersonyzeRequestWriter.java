@@ -0,0 +1,115 @@
+package com.personyze.androidsdk;
+
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serializes tracker requests directly to UTF-8 bytes, in a buffer that is reused between requests.
+ * The buffer doesn't grow beyond the limit. Commands that don't fit are left for the next request, and the request is closed after the last command that fits.
+ * Only one request at a time can be written, so callers synchronize on this object.
+ */
+class PersonyzeRequestWriter
+{	private static final byte[] END_COMMANDS = {']', '}'};
+	private static final Charset UTF_8 = Charset.forName("utf-8");
+
+	/**
+	 * Thrown when the request reaches the limit.
+	 */
+	static class LimitExceeded extends IOException
+	{	LimitExceeded()
+		{	super("Request was too big");
+		}
+	}
+
+	private static class Buffer extends OutputStream
+	{	byte[] buf = new byte[8*1024];
+		int count;
+		int limit;
+
+		@Override public void write(int b) throws IOException
+		{	reserve(1);
+			buf[count++] = (byte)b;
+		}
+
+		@Override public void write(byte[] b, int off, int len) throws IOException
+		{	reserve(len);
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		private void reserve(int len) throws LimitExceeded
+		{	if (count+len > limit)
+			{	throw new LimitExceeded();
+			}
+			if (count+len > buf.length)
+			{	buf = Arrays.copyOf(buf, Math.min(Math.max(buf.length*2, count+len), limit));
+			}
+		}
+	}
+
+	private final Buffer buffer = new Buffer();
+	private int nWritten;
+
+	/**
+	 * Start new request.
+	 * @param limit Maximal length of the request in bytes.
+	 * @return Writer for the request object. Write the fields, and then call {@link #writeCommands(JsonWriter, List, int)}.
+	 */
+	JsonWriter begin(int limit)
+	{	buffer.count = 0;
+		buffer.limit = limit - END_COMMANDS.length;
+		nWritten = 0;
+		return new JsonWriter(new OutputStreamWriter(buffer, UTF_8));
+	}
+
+	/**
+	 * Write "commands" array, starting at commands[from], and close the request object.
+	 * @return Index of the first command that was not written. If it's less than commands.size(), and {@link #getNWritten()} is 0, then commands[from] alone doesn't fit the limit.
+	 */
+	int writeCommands(JsonWriter json, List<PersonyzeCommand> commands, int from) throws IOException
+	{	json.name("commands");
+		json.beginArray();
+		json.flush();
+		int n = commands.size();
+		for (int i=from; i<n; i++)
+		{	int countBefore = buffer.count;
+			try
+			{	commands.get(i).write(json);
+				json.flush();
+			}
+			catch (LimitExceeded e)
+			{	// the writer is in the middle of the command, so drop it, and close the request by hand
+				buffer.count = countBefore;
+				buffer.limit += END_COMMANDS.length;
+				buffer.write(END_COMMANDS, 0, END_COMMANDS.length);
+				return i;
+			}
+			nWritten++;
+		}
+		buffer.limit += END_COMMANDS.length;
+		json.endArray();
+		json.endObject();
+		json.close();
+		return n;
+	}
+
+	/**
+	 * Number of commands written by last {@link #writeCommands(JsonWriter, List, int)}.
+	 */
+	int getNWritten()
+	{	return nWritten;
+	}
+
+	/**
+	 * The request body.
+	 */
+	byte[] toByteArray()
+	{	return Arrays.copyOf(buffer.buf, buffer.count);
+	}
+}
@@ -13,7 +13,7 @@ public class PersonyzeResult
 {	public ArrayList<PersonyzeCondition> conditions;
 	public ArrayList<PersonyzeAction> actions;
 
-	boolean fromStorage(SharedPreferences storage, Context context)
+	boolean fromStorage(SharedPreferences storage, PersonyzeDefinitionsCache cache, PersonyzeBlobStore blobs, Context context)
 	{	Set<String> conditionsSet = storage.getStringSet("Conditions", null);
 		Set<String> actionsSet = storage.getStringSet("Actions", null);
 		conditions = null;
@@ -24,7 +24,7 @@ public class PersonyzeResult
 			// conditions
 			for (String s : conditionsSet)
 			{	PersonyzeCondition condition = new PersonyzeCondition(PersonyzeTracker.intVal(s));
-				if (!condition.fromStorage(storage))
+				if (!condition.fromStorage(cache))
 				{	conditions = null;
 					return false;
 				}
@@ -33,7 +33,7 @@ public class PersonyzeResult
 			// actions
 			for (String s : actionsSet)
 			{	PersonyzeAction action = new PersonyzeAction(PersonyzeTracker.intVal(s));
-				if (!action.fromStorage(storage))
+				if (!action.fromStorage(cache, blobs))
 				{	conditions = null;
 					actions = null;
 					return false;
@@ -52,7 +52,7 @@ public class PersonyzeResult
 		return false;
 	}
 
-	void toStorage(SharedPreferences storage)
+	void toStorage(PersonyzeStorageSession storage)
 	{	if (conditions!=null && actions!=null)
 		{	SharedPreferences.Editor editor = storage.edit();
 			// conditions
@@ -68,7 +68,7 @@ public class PersonyzeResult
 			}
 			editor.putStringSet("Actions", set);
 			// ok
-			editor.apply();
+			storage.apply(editor);
 		}
 	}
 }
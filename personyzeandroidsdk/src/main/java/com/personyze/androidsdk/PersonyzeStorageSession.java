@@ -0,0 +1,68 @@
+package com.personyze.androidsdk;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Gathers changes to SharedPreferences between {@link #begin()} and {@link #end()}, and writes them at once.
+ * Processing one tracker response changes several keys (past sessions, blocked actions, session ID, current conditions and actions), and writing them one by one
+ * rewrites the whole preferences file each time, and leaves them inconsistent if the process dies in between.
+ * Changes made outside a session, or on another thread than the one that began it, are applied immediately, as before.
+ */
+class PersonyzeStorageSession
+{	private final SharedPreferences storage;
+	private SharedPreferences.Editor editor;
+	private Thread owner; // the thread that began the session, and whose changes it gathers
+	private int depth; // sessions can overlap if several flushes are in progress
+	private int nChanges;
+
+	PersonyzeStorageSession(SharedPreferences storage)
+	{	this.storage = storage;
+	}
+
+	/**
+	 * Call {@link #begin()} and {@link #end()} on the same thread.
+	 */
+	synchronized void begin()
+	{	if (depth++ == 0)
+		{	editor = storage.edit();
+			owner = Thread.currentThread();
+			nChanges = 0;
+		}
+	}
+
+	/**
+	 * Editor to make a change with. Pass it to {@link #apply(SharedPreferences.Editor)} after the change.
+	 * Only the thread that began the session gets the session editor, so a change from another thread is not held back till the session ends.
+	 */
+	synchronized SharedPreferences.Editor edit()
+	{	return depth>0 && owner==Thread.currentThread() ? editor : storage.edit();
+	}
+
+	/**
+	 * Apply the change now, or if a session is in progress, on its end.
+	 */
+	synchronized void apply(SharedPreferences.Editor e)
+	{	if (e == editor)
+		{	nChanges++;
+		}
+		else
+		{	e.apply();
+		}
+	}
+
+	/**
+	 * Write the changes of the session in one commit. Call on a background thread, as this waits for the disk.
+	 * The lock is held during the commit, so a change made meanwhile can't be overwritten by the older value from the session.
+	 */
+	synchronized void end()
+	{	if (depth==0 || --depth>0)
+		{	return;
+		}
+		if (nChanges>0 && !editor.commit())
+		{	Log.e("Personyze", "Couldn't write storage");
+		}
+		editor = null;
+		owner = null;
+	}
+}
@@ -1,17 +1,26 @@
 package com.personyze.androidsdk;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.Manifest;
 import android.app.Notification;
@@ -22,8 +31,12 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.DisplayMetrics;
+import android.util.JsonWriter;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
@@ -36,11 +49,11 @@ import androidx.work.WorkManager;
 
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONStringer;
 import org.json.JSONTokener;
 
 /**
@@ -75,33 +88,64 @@ public class PersonyzeTracker
 	private static final String NOTI_CHANNEL_NAME = "Recommendations";
 	private static  final int NOTI_ID = 1839852125; // random number
 	private static final String PLATFORM = "Android";
+	/**
+	 * Where the SDK parses responses and works with storage. It's one thread, so this work runs in order, like it would on the main thread, but doesn't delay drawing.
+	 * The state that this work uses (user and session, storage, definitions, result, blocked actions) is accessed only on this thread, so it needs no locking. Other threads post their changes here.
+	 */
+	static final ExecutorService executor = Executors.newSingleThreadExecutor
+	(	runnable ->
+		{	Thread thread = new Thread(runnable, "Personyze");
+			thread.setDaemon(true);
+			return thread;
+		}
+	);
 	private static final int POST_LIMIT = 50000;
 	private static final int REMEMBER_PAST_SESSIONS = 12;
+	private static final int FORMAT_DEFINITIONS_CACHE = 1; // value of "Storage Format" since definitions are in PersonyzeDefinitionsCache
 	private static final long PERIODIC_INTERVAL_MILLIS = PeriodicWorkRequest.MIN_PERIODIC_INTERVAL_MILLIS;
+	private static final Handler handler = new Handler(Looper.getMainLooper());
 
 	enum Rejected
 	{	DONT_SHOW_AGAIN, PRESENTING_RULES
 	}
 
-	private int userId;
-	final PersonyzeHttp http = new PersonyzeHttp();
-	private SharedPreferences storage;
+	private int userId; // on executor
+	final PersonyzeHttp http = new PersonyzeHttp(executor);
+	private final PersonyzeRequestWriter requestWriter = new PersonyzeRequestWriter();
+	private SharedPreferences storage; // on executor
+	private PersonyzeStorageSession storageSession; // changes to storage made while processing a tracker response are written together
+	private PersonyzeDefinitionsCache definitions; // conditions, actions and placeholders
+	private PersonyzeBlobStore contentBlobs; // content of actions
+	private volatile PersonyzeMetadataTimings metadataTimings; // of the last metadata load
 	private double timeZone;
 	private String language;
 	private String os;
 	private String deviceType;
 	private boolean notiEnabled;
 	private long notiLastCheckTime;
-	private final ArrayList<String[]> commands = new ArrayList<>(8);
-	private boolean isNavigate;
+	private final PersonyzeCommandQueue queue = new PersonyzeCommandQueue(); // producers put commands here without locking
+	private final ReentrantLock commandsLock = new ReentrantLock(); // guards commands and journal
+	private final ArrayList<PersonyzeCommand> commands = new ArrayList<>(8);
+	private final HashMap<Integer, HashSet<String>> reportedStatuses = new HashMap<>(); // action statuses in commands since last Navigate
+	private volatile PersonyzeJournal journal;
+	private final PersonyzeFlushScheduler scheduler = new PersonyzeFlushScheduler(this::autoFlush);
+	private final PersonyzeNetworkState network = new PersonyzeNetworkState();
+	private Context appContext;
 	private boolean wantNewSession;
-	private String sessionId;
+	private String sessionId; // on executor
 	private int cacheVersion;
 	private int apiKeyHash;
-	private PersonyzeResult personyzeResult;
-	private Task<PersonyzeResult> queryingResults;
-	private StoredIntMap blockedActions;
-	private PastSessions pastSessions;
+	private PersonyzeResult personyzeResult; // on executor
+	private volatile Task<PersonyzeResult> queryingResults;
+	private final Object flushLock = new Object(); // guards queryingResults and the flush state, because flushes start on main thread, app threads, and network callback threads
+	private Task<PersonyzeResult> flushInFlight; // flush that is running now
+	private boolean flushInFlightWantsResult; // flushInFlight was asked for result, not only to send commands
+	private Task<PersonyzeResult> flushNext; // flush that starts when flushInFlight completes, shared by all who asked during flushInFlight
+	private boolean flushNextWantsResult;
+	private StoredIntMap blockedActions; // on executor
+	private PastSessions pastSessions; // on executor
+	private boolean warmUpEnabled;
+	private boolean warmedUp; // warm-up was started with the current transport
 
 	// Singleton
 	public static final PersonyzeTracker inst = new PersonyzeTracker();
@@ -145,9 +189,9 @@ public class PersonyzeTracker
 				sb.append(':');
 				sb.append(entry.getValue());
 			}
-			SharedPreferences.Editor editor = storage.edit();
+			SharedPreferences.Editor editor = storageSession.edit();
 			editor.putString(key, sb.toString());
-			editor.apply();
+			storageSession.apply(editor);
 		}
 
 		void dec()
@@ -187,9 +231,9 @@ public class PersonyzeTracker
 				}
 			}
 			// save
-			SharedPreferences.Editor editor = storage.edit();
+			SharedPreferences.Editor editor = storageSession.edit();
 			editor.putString("Past Sessions", value);
-			editor.apply();
+			storageSession.apply(editor);
 		}
 	}
 
@@ -204,91 +248,162 @@ public class PersonyzeTracker
 		return 0;
 	}
 
-	private void addCommand(String arg1)
-	{	String[] command = new String[1];
-		command[0] = arg1;
-		commands.add(command);
+	private void addCommand(PersonyzeCommand.Op op, String arg)
+	{	queueCommand(new PersonyzeCommand(op, 0, arg, null));
 	}
 
-	private void addCommand(String arg1, String arg2)
-	{	String[] command = new String[2];
-		command[0] = arg1;
-		command[1] = arg2;
-		commands.add(command);
+	private void queueCommand(PersonyzeCommand command)
+	{	queue.offer(command);
+		scheduler.commandAdded(command.approxLength());
+		// Move it to commands now, unless another thread is doing this, and so will take it. The journal writes it on executor
+		while (commandsLock.tryLock())
+		{	try
+			{	drainQueue();
+			}
+			finally
+			{	commandsLock.unlock();
+			}
+			if (!queue.hasPending())
+			{	break;
+			}
+		}
 	}
 
-	private void addCommand(String arg1, String arg2, String arg3)
-	{	String[] command = new String[3];
-		command[0] = arg1;
-		command[1] = arg2;
-		command[2] = arg3;
-		commands.add(command);
+	/**
+	 * Move commands from the lock-free queue to commands and journal. Call with commandsLock held.
+	 */
+	private void drainQueue()
+	{	PersonyzeJournal journal = this.journal;
+		PersonyzeCommand command;
+		while ((command = queue.poll()) != null)
+		{	commands.add(command);
+			indexStatus(command);
+			if (journal != null)
+			{	journal.append(command);
+			}
+		}
+	}
+
+	private void indexStatus(PersonyzeCommand command)
+	{	if (command.op == PersonyzeCommand.Op.NAVIGATE)
+		{	reportedStatuses.clear();
+		}
+		else if (command.op == PersonyzeCommand.Op.ACTION_STATUS)
+		{	HashSet<String> statuses = reportedStatuses.get(command.id);
+			if (statuses == null)
+			{	statuses = new HashSet<>(2);
+				reportedStatuses.put(command.id, statuses);
+			}
+			statuses.add(command.arg1);
+		}
+	}
+
+	/**
+	 * Rebuild reportedStatuses after commands were inserted not at the end. Call with commandsLock held.
+	 */
+	private void reindexStatuses()
+	{	reportedStatuses.clear();
+		for (PersonyzeCommand command : commands)
+		{	indexStatus(command);
+		}
+	}
+
+	private void autoFlush()
+	{	Context context = appContext;
+		if (context!=null && http.apiKey!=null)
+		{	long waitMillis = http.breaker.millisTillProbe();
+			if (waitMillis > 0)
+			{	scheduler.postpone(waitMillis); // the server is down, so keep the events till it's time to probe it
+				return;
+			}
+			flushWhenCheap(context);
+		}
 	}
 
-	private void addCommand(String arg1, String arg2, String arg3, String arg4)
-	{	String[] command = new String[4];
-		command[0] = arg1;
-		command[1] = arg2;
-		command[2] = arg3;
-		command[3] = arg4;
-		commands.add(command);
+	/**
+	 * Flush that nobody waits for, like status reports. On metered network it waits till the radio is active because of other traffic, so it doesn't wake the radio only for this.
+	 * Flushes that return result are never deferred, and they take the deferred commands with them.
+	 */
+	private void flushWhenCheap(final Context context)
+	{	network.runWhenCheap(() -> flush(context, false, false));
 	}
 
+	/**
+	 * Send queued commands, and get the result. Concurrent calls are collapsed:
+	 * if a flush is running, and there are no new commands, its outcome is shared. Otherwise the caller joins the next flush, that starts when the running one completes.
+	 */
 	private Task<PersonyzeResult> flush(Context context, boolean requireSomeResult, boolean isStartNewSession)
-	{	queryingResults = doInitialize(context).continueWithTask
-		(	task ->
+	{	synchronized (flushLock)
+		{	if (flushInFlight==null || isStartNewSession)
+			{	return startFlush(context, requireSomeResult, isStartNewSession);
+			}
+			if (!hasPendingCommands() && (flushInFlightWantsResult || !requireSomeResult))
+			{	return flushInFlight;
+			}
+			if (flushNext == null)
+			{	flushNextWantsResult = requireSomeResult;
+				flushNext = flushInFlight.continueWithTask
+				(	executor,
+					task ->
+					{	synchronized (flushLock)
+						{	flushNext = null;
+							return startFlush(context, flushNextWantsResult, false);
+						}
+					}
+				);
+			}
+			else
+			{	flushNextWantsResult |= requireSomeResult;
+			}
+			return flushNext;
+		}
+	}
+
+	private boolean hasPendingCommands()
+	{	if (queue.hasPending())
+		{	return true;
+		}
+		commandsLock.lock();
+		try
+		{	return !commands.isEmpty();
+		}
+		finally
+		{	commandsLock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called with flushLock locked.
+	 */
+	private Task<PersonyzeResult> startFlush(Context context, boolean requireSomeResult, boolean isStartNewSession)
+	{	scheduler.flushStarted();
+		queryingResults = doInitialize(context).continueWithTask
+		(	executor,
+			task ->
 			{	if (task.getException() != null)
 				{	throw task.getException();
 				}
-				final boolean curIsNavigate = isNavigate;
-				String postStr = null;
+				ArrayList<File> segments = null;
+				boolean newSession = false;
+				ArrayList<PersonyzeCommand> sending = null;
+				commandsLock.lock();
 				try
-				{	if (commands.size()>0 || requireSomeResult && personyzeResult==null)
-					{	// Form the POST request that includes session data and commands
-						JSONStringer postJson = new JSONStringer();
-						postJson.object();
-						postJson.key("user_id").value(userId);
-						postJson.key("session_id").value(sessionId);
-						postJson.key("new_session").value(wantNewSession || sessionId==null || intVal(sessionId)*1000L + 90*60*1000 - 5000 <= System.currentTimeMillis()); // sessionId contains information that Personyze server wants me to store and send him back. The only thing he promises me is that there is sessionStartTime in the beginning
-						postJson.key("past_sessions").value(pastSessions.value);
-						postJson.key("platform").value(PLATFORM);
-						postJson.key("time_zone").value(timeZone);
-						postJson.key("languages").value(language);
-						DisplayMetrics m = Resources.getSystem().getDisplayMetrics();
-						postJson.key("screen").value(String.format(Locale.US, "%dx%d", m.widthPixels, m.heightPixels));
-						postJson.key("os").value(os);
-						postJson.key("device_type").value(deviceType);
-						postJson.key("noti_enabled").value(notiEnabled);
-						postJson.key("commands").array();
-						for (String[] command : commands)
-						{	postJson.array();
-							for (String arg : command)
-							{	postJson.value(arg);
-							}
-							postJson.endArray();
-						}
-						postJson.endArray();
-						postJson.endObject();
-						postStr = postJson.toString();
+				{	drainQueue();
+					if (commands.size()>0 || requireSomeResult && personyzeResult==null)
+					{	sending = new ArrayList<>(commands);
+						segments = journal==null ? null : journal.seal();
 						commands.clear(); // delete commands that are about to be sent (to avoid sending twice)
-						if (postStr.length() > POST_LIMIT)
-						{	throw new PersonyzeError("Request was too big", PersonyzeError.Type.REQUEST_TOO_BIG);
-						}
-						isNavigate = false;
-						wantNewSession = false;
+						reportedStatuses.clear();
+						scheduler.commandsTaken(sending.size());
+						network.cancelDeferred(); // this flush sends what the deferred one would
 					}
 				}
-				catch (JSONException e)
-				{	commands.clear(); // discard failed commands
-					isNavigate = false;
-					final TaskCompletionSource<PersonyzeResult> asyncResult = new TaskCompletionSource<>();
-					asyncResult.setException(new PersonyzeError("JSON error: "+e.getLocalizedMessage()));
-					return asyncResult.getTask();
+				finally
+				{	commandsLock.unlock();
 				}
-				catch (PersonyzeError e)
-				{	final TaskCompletionSource<PersonyzeResult> asyncResult = new TaskCompletionSource<>();
-					asyncResult.setException(e);
-					return asyncResult.getTask();
+				if (sending != null)
+				{	newSession = wantNewSession || sessionId==null || intVal(sessionId)*1000L + 90*60*1000 - 5000 <= System.currentTimeMillis(); // sessionId contains information that Personyze server wants me to store and send him back. The only thing he promises me is that there is sessionStartTime in the beginning
+					wantNewSession = false;
 				}
 				if (isStartNewSession)
 				{	wantNewSession = true;
@@ -299,130 +414,317 @@ public class PersonyzeTracker
 					editor.remove("Actions");
 					editor.apply();
 				}
-				if (postStr == null)
+				if (sending == null)
 				{	// Nothing to send, just get current result
 					final TaskCompletionSource<PersonyzeResult> asyncResult = new TaskCompletionSource<>();
 					asyncResult.setResult(personyzeResult);
 					return asyncResult.getTask();
 				}
-				// Send the request
-				return http.post("tracker-v1", postStr).continueWithTask
-				(	task2 ->
-					{	try
-						{	if (task2.getException() != null)
-							{	throw task2.getException();
-							}
-							JSONObject object = (JSONObject)new JSONTokener(task2.getResult()).nextValue();
-							String rSessionId = object.isNull("session_id") ? null : object.getString("session_id");
-							int rCacheVersion = object.getInt("cache_version");
-							JSONArray rConditions = object.getJSONArray("conditions");
-							JSONArray rActions = object.getJSONArray("actions");
-							JSONArray rDismissConditions = object.getJSONArray("dismiss_conditions");
-							JSONArray rDismissActions = object.getJSONArray("dismiss_actions");
-							// vars
-							boolean wantClearCache;
-							boolean loadConditions = false;
-							boolean loadActions = false;
-							PersonyzeResult newPersonyzeResult = new PersonyzeResult();
-							boolean hasCommandsAdded = false;
-							if (rSessionId == null)
-							{	rSessionId = sessionId;
-							}
-							if (rCacheVersion == 0)
-							{	rCacheVersion = cacheVersion;
-							}
-							wantClearCache = rCacheVersion > cacheVersion;
-							cacheVersion = rCacheVersion;
-							int rSessionStartTime = intVal(rSessionId);
-							boolean isNewSession = rSessionStartTime != intVal(sessionId);
-							sessionId = rSessionId;
-							if (isNewSession)
-							{	blockedActions.dec();
-								pastSessions.add(rSessionStartTime);
-							}
-							if (wantClearCache)
-							{	clearCache(context); // sets editor.putString("User", sessionId)
-							}
-							else if (isNewSession)
-							{	SharedPreferences.Editor editor = storage.edit();
-								editor.putString("User", rSessionId);
-								editor.remove("New Session");
-								editor.apply();
-							}
-							// newPersonyzeResult.conditions
-							newPersonyzeResult.conditions = new ArrayList<>(rConditions.length());
-							for (int i=0, iEnd=rConditions.length(); i<iEnd; i++)
-							{	object = rConditions.getJSONObject(i);
-								PersonyzeCondition condition = new PersonyzeCondition(object.getInt("id"));
-								if (!wantClearCache && !condition.fromStorage(storage))
-								{	loadConditions = true;
-								}
-								newPersonyzeResult.conditions.add(condition);
-							}
-							// newPersonyzeResult.actions
-							newPersonyzeResult.actions = new ArrayList<>(rActions.length());
-							for (int i=0, iEnd=rActions.length(); i<iEnd; i++)
-							{	object = rActions.getJSONObject(i);
-								int id = object.getInt("id");
-								if (!blockedActions.containsKey(id))
-								{	HashMap<String, String> data = null;
-									JSONObject jData = object.optJSONObject("data");
-									if (jData != null)
-									{	data = new HashMap<>();
-										Iterator<String> keys = jData.keys();
-										while (keys.hasNext())
-										{	String key = keys.next();
-											data.put(key, jData.getString(key));
-										}
-									}
-									PersonyzeAction action = new PersonyzeAction(id, data, rCacheVersion);
-									if (!wantClearCache && !action.fromStorage(storage))
-									{	loadActions = true;
-									}
-									newPersonyzeResult.actions.add(action);
-									// store data, so it will survive application/activity restart
-									try
-									{	action.dataToStorage(context);
-									}
-									catch (IOException e)
-									{	Log.e("Personyze", Objects.requireNonNull(e.getLocalizedMessage()));
-									}
-								}
-								else
-								{	addCommand("Action Status", ""+id, "dont-show");
-									hasCommandsAdded = true;
-								}
-							}
-							// dismissConditions
-							int[] dismissConditions = new int[rDismissConditions.length()];
-							for (int i=0, iEnd=rDismissConditions.length(); i<iEnd; i++)
-							{	dismissConditions[i] = rDismissConditions.getInt(i);
-							}
-							// dismissActions
-							int[] dismissActions = new int[rDismissActions.length()];
-							for (int i=0, iEnd=rDismissActions.length(); i<iEnd; i++)
-							{	dismissActions[i] = rDismissActions.getInt(i);
-							}
-							// done
-							final boolean wantFlush = hasCommandsAdded;
-							return loadWhatNeeded(newPersonyzeResult, loadConditions || wantClearCache && newPersonyzeResult.conditions.size()>0, loadActions || wantClearCache && newPersonyzeResult.actions.size()>0, wantClearCache).continueWith
-							(	task3 ->
-								{	setResult(newPersonyzeResult, curIsNavigate, dismissConditions, dismissActions);
-									if (wantFlush)
-									{	flush(context, false, false);
-									}
-									return personyzeResult;
-								}
-							);
+				// Send the requests
+				return sendBatches(context, PersonyzeCommand.compact(sending), 0, newSession, segments, requireSomeResult);
+			}
+		);
+		final Task<PersonyzeResult> flushTask = queryingResults;
+		flushInFlight = flushTask;
+		flushInFlightWantsResult = requireSomeResult;
+		flushTask.addOnCompleteListener
+		(	executor,
+			task ->
+			{	synchronized (flushLock)
+				{	if (flushInFlight == flushTask)
+					{	flushInFlight = null;
+					}
+				}
+				scheduler.flushFinished();
+			}
+		);
+		return flushTask;
+	}
+
+	/**
+	 * Form the POST request that includes session data and commands, starting at commands[from], as many as fit POST_LIMIT.
+	 * Must be called with requestWriter locked. The request is in requestWriter.
+	 * @return Index of the first command that was not included.
+	 */
+	private int writeRequest(ArrayList<PersonyzeCommand> commands, int from, boolean newSession) throws IOException
+	{	JsonWriter postJson = requestWriter.begin(POST_LIMIT);
+		postJson.beginObject();
+		postJson.name("user_id").value(userId);
+		postJson.name("session_id").value(sessionId);
+		postJson.name("new_session").value(newSession);
+		postJson.name("past_sessions").value(pastSessions.value);
+		postJson.name("platform").value(PLATFORM);
+		postJson.name("time_zone").value(timeZone);
+		postJson.name("languages").value(language);
+		DisplayMetrics m = Resources.getSystem().getDisplayMetrics();
+		postJson.name("screen").value(String.format(Locale.US, "%dx%d", m.widthPixels, m.heightPixels));
+		postJson.name("os").value(os);
+		postJson.name("device_type").value(deviceType);
+		postJson.name("noti_enabled").value(notiEnabled);
+		return requestWriter.writeCommands(postJson, commands, from);
+	}
+
+	/**
+	 * Send commands in batches that fit POST_LIMIT, one after another, in order. Commands that can't fit even alone are discarded.
+	 * The result of each batch is merged to personyzeResult, so the last one is the whole result.
+	 * Each batch is formed only after the previous one was answered, so it contains the session_id that the server returned.
+	 * Batches that the user waits for (getResult() or navigation) go in INTERACTIVE lane, and others, like status reports, in BACKGROUND.
+	 */
+	private Task<PersonyzeResult> sendBatches(final Context context, final ArrayList<PersonyzeCommand> commands, int from, boolean newSession, final ArrayList<File> segments, final boolean wantsResult)
+	{	final boolean isFirst = from == 0;
+		boolean discarded = false;
+		int end;
+		int nWritten;
+		byte[] postData;
+		synchronized (requestWriter)
+		{	try
+			{	while (true)
+				{	end = writeRequest(commands, from, newSession);
+					nWritten = requestWriter.getNWritten();
+					if (nWritten>0 || end==commands.size())
+					{	break;
+					}
+					Log.e("Personyze", "Command "+commands.get(end).op.wire+" was too big");
+					discarded = true;
+					from = end + 1;
+				}
+				postData = requestWriter.toByteArray();
+			}
+			catch (IOException e)
+			{	if (segments != null)
+				{	journal.ack(segments); // discard failed commands
+				}
+				final TaskCompletionSource<PersonyzeResult> asyncResult = new TaskCompletionSource<>();
+				asyncResult.setException(e instanceof PersonyzeRequestWriter.LimitExceeded ? new PersonyzeError("Request was too big", PersonyzeError.Type.REQUEST_TOO_BIG) : new PersonyzeError("JSON error: "+e.getLocalizedMessage()));
+				return asyncResult.getTask();
+			}
+		}
+		if (discarded && nWritten==0)
+		{	// all the remaining commands were discarded
+			if (segments != null)
+			{	journal.ack(segments); // they will never be sent, so don't replay them
+			}
+			final TaskCompletionSource<PersonyzeResult> asyncResult = new TaskCompletionSource<>();
+			if (isFirst)
+			{	asyncResult.setException(new PersonyzeError("Request was too big", PersonyzeError.Type.REQUEST_TOO_BIG));
+			}
+			else
+			{	asyncResult.setResult(personyzeResult);
+			}
+			return asyncResult.getTask();
+		}
+		boolean batchIsNavigate = false;
+		for (int i=from; i<end; i++)
+		{	if (commands.get(i).op == PersonyzeCommand.Op.NAVIGATE)
+			{	batchIsNavigate = true;
+				break;
+			}
+		}
+		final boolean curIsNavigate = batchIsNavigate;
+		final int start = from;
+		final int next = end;
+		final boolean isLast = next == commands.size();
+		PersonyzeTransport.Lane lane = wantsResult || curIsNavigate ? PersonyzeTransport.Lane.INTERACTIVE : PersonyzeTransport.Lane.BACKGROUND;
+		return http.post("tracker-v1", postData, lane).continueWithTask
+		(	executor,
+			task ->
+			{	Exception e = task.getException();
+				if (e != null)
+				{	if (e instanceof PersonyzeError && ((PersonyzeError)e).isFatal())
+					{	if (segments != null)
+						{	journal.ack(segments); // will never be accepted
 						}
-						catch (JSONException e)
-						{	throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
+					}
+					else if (e instanceof PersonyzeError && ((PersonyzeError)e).isRetryable())
+					{	requeue(commands.subList(start, commands.size()), segments);
+						if (((PersonyzeError)e).getType()==PersonyzeError.Type.CIRCUIT_OPEN && personyzeResult!=null)
+						{	return Tasks.forResult(personyzeResult); // the events will be sent when the server is back, and till then the last result stands
+						}
+					}
+					throw e; // otherwise segments remain in the journal, and will be replayed on next start
+				}
+				if (isLast && segments!=null)
+				{	journal.ack(segments);
+				}
+				// Don't replay the accepted batch, if sending the next one fails
+				final ArrayList<File> rest = isLast || segments==null ? null : journal.replace(segments, commands.subList(next, commands.size()));
+				Task<PersonyzeResult> result = processResponse(context, task.getResult(), curIsNavigate);
+				if (isLast)
+				{	return result;
+				}
+				return result.continueWithTask
+				(	executor,
+					task2 ->
+					{	if (task2.getException() != null)
+						{	throw task2.getException();
 						}
+						return sendBatches(context, commands, next, false, rest, wantsResult);
 					}
 				);
 			}
 		);
-		return queryingResults;
+	}
+
+	/**
+	 * Put commands that were not sent back to the head of the queue, so they will be sent on next flush.
+	 * The segments can also hold commands of earlier batches that the server accepted, so only the unsent ones are put back to the journal.
+	 */
+	private void requeue(List<PersonyzeCommand> unsent, ArrayList<File> segments)
+	{	int length = 0;
+		for (PersonyzeCommand command : unsent)
+		{	length += command.approxLength();
+		}
+		commandsLock.lock();
+		try
+		{	drainQueue();
+			commands.addAll(0, unsent);
+			reindexStatuses();
+			if (segments != null)
+			{	journal.unseal(journal.replace(segments, unsent));
+			}
+		}
+		finally
+		{	commandsLock.unlock();
+		}
+		scheduler.commandsReturned(unsent.size(), length);
+	}
+
+	private Task<PersonyzeResult> processResponse(final Context context, String response, final boolean curIsNavigate) throws PersonyzeError
+	{	storageSession.begin(); // ends when the result is set
+		try
+		{	PersonyzeTrackerResponse r = PersonyzeTrackerResponse.parse(response, cacheVersion);
+			String rSessionId = r.sessionId;
+			int rCacheVersion = r.cacheVersion;
+			// vars
+			boolean wantClearCache;
+			boolean loadConditions = false;
+			boolean loadActions = false;
+			PersonyzeResult newPersonyzeResult = new PersonyzeResult();
+			boolean hasCommandsAdded = false;
+			if (rSessionId == null)
+			{	rSessionId = sessionId;
+			}
+			wantClearCache = rCacheVersion > cacheVersion;
+			cacheVersion = rCacheVersion;
+			int rSessionStartTime = intVal(rSessionId);
+			boolean isNewSession = rSessionStartTime != intVal(sessionId);
+			sessionId = rSessionId;
+			if (isNewSession)
+			{	blockedActions.dec();
+				pastSessions.add(rSessionStartTime);
+			}
+			if (wantClearCache)
+			{	// before the new definitions are loaded, so they're not deleted with the old ones
+				SharedPreferences.Editor editor = storageSession.edit();
+				clearCacheNow(context, editor); // sets editor.putString("User", sessionId)
+				storageSession.apply(editor);
+			}
+			else if (isNewSession)
+			{	SharedPreferences.Editor editor = storageSession.edit();
+				editor.putString("User", rSessionId);
+				editor.remove("New Session");
+				storageSession.apply(editor);
+			}
+			// newPersonyzeResult.conditions
+			newPersonyzeResult.conditions = r.conditions;
+			for (PersonyzeCondition condition : r.conditions)
+			{	if (!wantClearCache && !condition.fromStorage(definitions))
+				{	loadConditions = true;
+				}
+			}
+			// newPersonyzeResult.actions
+			newPersonyzeResult.actions = new ArrayList<>(r.actions.size());
+			for (PersonyzeAction action : r.actions)
+			{	int id = action.id;
+				if (!blockedActions.containsKey(id))
+				{	if (!wantClearCache && !action.fromStorage(definitions, contentBlobs))
+					{	loadActions = true;
+					}
+					newPersonyzeResult.actions.add(action);
+					// store data, so it will survive application/activity restart
+					try
+					{	action.dataToStorage(context);
+					}
+					catch (IOException e)
+					{	Log.e("Personyze", Objects.requireNonNull(e.getLocalizedMessage()));
+					}
+				}
+				else
+				{	queueCommand(new PersonyzeCommand(PersonyzeCommand.Op.ACTION_STATUS, id, "dont-show", null));
+					hasCommandsAdded = true;
+				}
+			}
+			int[] dismissConditions = r.dismissConditions;
+			int[] dismissActions = r.dismissActions;
+			// done
+			final boolean wantFlush = hasCommandsAdded;
+			return loadWhatNeeded(newPersonyzeResult, loadConditions || wantClearCache && newPersonyzeResult.conditions.size()>0, loadActions || wantClearCache && newPersonyzeResult.actions.size()>0, wantClearCache).continueWith
+			(	executor,
+				task3 ->
+				{	try
+					{	commitDefinitions(); // what was loaded, even if something failed
+						setResult(newPersonyzeResult, curIsNavigate, dismissConditions, dismissActions);
+					}
+					finally
+					{	storageSession.end();
+					}
+					deleteActionData(context, personyzeResult.actions);
+					if (wantFlush)
+					{	flushWhenCheap(context);
+					}
+					return personyzeResult;
+				}
+			);
+		}
+		catch (IOException e)
+		{	storageSession.end();
+			throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
+		}
+		catch (RuntimeException e)
+		{	storageSession.end();
+			throw e;
+		}
+	}
+
+	/**
+	 * Save the definitions, and delete content blobs that no cached action refers to, because their actions were changed or evicted.
+	 */
+	private void commitDefinitions()
+	{	try
+		{	definitions.commit();
+		}
+		catch (IOException e)
+		{	Log.e("Personyze", "Couldn't save definitions: "+e.getLocalizedMessage());
+			return;
+		}
+		HashSet<String> hashes = new HashSet<>();
+		for (int id : definitions.ids(PersonyzeDefinitionsCache.ACTION))
+		{	PersonyzeAction.contentHashesFromStorage(definitions, id, hashes);
+		}
+		contentBlobs.retainOnly(hashes);
+	}
+
+	/**
+	 * Delete data files of actions that are not in the current result. Only the current result is restored on start.
+	 * @param keep Actions whose data to keep, or null to delete all.
+	 */
+	private static void deleteActionData(Context context, ArrayList<PersonyzeAction> keep)
+	{	File[] files = context.getCacheDir().listFiles();
+		if (files == null)
+		{	return;
+		}
+		HashSet<String> keepNames = new HashSet<>();
+		if (keep != null)
+		{	for (PersonyzeAction action : keep)
+			{	keepNames.add(PersonyzeAction.dataFileName(action.id));
+			}
+		}
+		for (File file : files)
+		{	String name = file.getName();
+			if (name.startsWith(PersonyzeAction.DATA_FILE_PREFIX) && !keepNames.contains(name) && !file.delete())
+			{	Log.e("Personyze", "Couldn't delete "+file);
+			}
+		}
 	}
 
 	private void setResult(PersonyzeResult newPersonyzeResult, boolean curIsNavigate, int[] dismissConditions, int[] dismissActions)
@@ -456,12 +758,16 @@ public class PersonyzeTracker
 				}
 			}
 		}
-		personyzeResult.toStorage(storage);
+		personyzeResult.toStorage(storageSession);
 	}
 
+	/**
+	 * Load names and content of conditions and actions that are not in storage. Conditions, actions, and placeholders that the actions had last time are requested in parallel.
+	 * Only placeholders that turn out to be new are requested after the actions response.
+	 */
 	private Task<Void> loadWhatNeeded(final PersonyzeResult newPersonyzeResult, boolean loadConditions, boolean loadActions, final boolean noTryCache)
-	{	Task<Void> loadConditionsTask = null;
-		Task<Void> loadActionsTask = null;
+	{	final PersonyzeMetadataTimings timings = new PersonyzeMetadataTimings();
+		ArrayList<Task<Void>> tasks = new ArrayList<>(2);
 		StringBuilder sb = null;
 		if (loadConditions)
 		{	sb = new StringBuilder(200);
@@ -474,31 +780,35 @@ public class PersonyzeTracker
 					delim = ',';
 				}
 			}
-			loadConditionsTask = http.get(sb.toString()).continueWith
-			(	task ->
-				{	try
-					{	if (task.getException() != null)
-						{	throw task.getException();
-						}
-						JSONArray array = (JSONArray)new JSONTokener(task.getResult()).nextValue();
-						for (int i=0, iEnd=array.length(); i<iEnd; i++)
-						{	JSONObject row = array.getJSONObject(i);
-							int id = row.getInt("id");
-							String name = row.getString("name");
-							for (PersonyzeCondition condition : newPersonyzeResult.conditions)
-							{	if (condition.id == id)
-								{	condition.name = name;
-									condition.toStorage(storage);
-									break;
+			tasks.add
+			(	http.get(sb.toString()).continueWith
+				(	executor,
+					task ->
+					{	try
+						{	if (task.getException() != null)
+							{	throw task.getException();
+							}
+							JSONArray array = (JSONArray)new JSONTokener(task.getResult()).nextValue();
+							for (int i=0, iEnd=array.length(); i<iEnd; i++)
+							{	JSONObject row = array.getJSONObject(i);
+								int id = row.getInt("id");
+								String name = row.getString("name");
+								for (PersonyzeCondition condition : newPersonyzeResult.conditions)
+								{	if (condition.id == id)
+									{	condition.name = name;
+										condition.toStorage(definitions);
+										break;
+									}
 								}
 							}
 						}
+						catch (JSONException e)
+						{	throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
+						}
+						timings.conditionsMillis = timings.sinceStart();
+						return null;
 					}
-					catch (JSONException e)
-					{	throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
-					}
-					return null;
-				}
+				)
 			);
 		}
 		if (loadActions)
@@ -510,128 +820,193 @@ public class PersonyzeTracker
 			}
 			sb.append("actions/columns/id,name,content_type,content_param,content_begin,content_end,libs_app,placeholders/where/id");
 			char delim = ':';
+			final TreeSet<Integer> prefetchIds = new TreeSet<>();
 			for (PersonyzeAction action : newPersonyzeResult.actions)
 			{	if (noTryCache || action.name==null)
 				{	sb.append(delim);
 					sb.append(action.id);
 					delim = ',';
+					// placeholders that this action had last time are probably still its
+					int[] storedPlaceholders = noTryCache ? null : PersonyzeAction.placeholderIdsFromStorage(definitions, action.id);
+					if (storedPlaceholders != null)
+					{	for (int placeholderId : storedPlaceholders)
+						{	PersonyzePlaceholder placeholder = new PersonyzePlaceholder(placeholderId);
+							if (!placeholder.fromStorage(definitions))
+							{	prefetchIds.add(placeholder.id);
+							}
+						}
+					}
 				}
 			}
-			loadActionsTask = http.get(sb.toString()).continueWithTask
-			(	task ->
-				{	try
-					{	if (task.getException() != null)
-						{	throw task.getException();
-						}
-						StringBuilder loadPlaceholders = null;
-						JSONArray array = (JSONArray)new JSONTokener(task.getResult()).nextValue();
-						for (int i=0, iEnd=array.length(); i<iEnd; i++)
-						{	JSONObject row = array.getJSONObject(i);
-							int id = row.getInt("id");
-							String name = row.getString("name");
-							String contentType = row.isNull("content_type") ? "" : row.getString("content_type");
-							String contentParam = row.isNull("content_param") ? "" : row.getString("content_param");
-							String contentBegin = row.isNull("content_begin") ? "" : row.getString("content_begin");
-							String contentEnd = row.isNull("content_end") ? "" : row.getString("content_end");
-							String libsApp = row.isNull("libs_app") ? "" : row.getString("libs_app");
-							JSONArray placeholders = row.getJSONArray("placeholders");
-							for (PersonyzeAction action : newPersonyzeResult.actions)
-							{	if (action.id == id)
-								{	action.name = name;
-									action.contentType = contentType;
-									action.contentParam = contentParam;
-									action.contentBegin = contentBegin;
-									action.contentEnd = contentEnd;
-									action.libsApp = libsApp;
-									action.placeholders = new ArrayList<>(placeholders.length());
-									for (int j=0, j_end=placeholders.length(); j<j_end; j++)
-									{	PersonyzePlaceholder placeholder = new PersonyzePlaceholder(placeholders.getInt(j));
-										if (!noTryCache && !placeholder.fromStorage(storage))
-										{	if (loadPlaceholders == null)
-											{	loadPlaceholders = new StringBuilder(128);
-												loadPlaceholders.append("placeholders/columns/id,name,html_id,units_count_max/where/id:");
-												loadPlaceholders.append(placeholder.id);
-											}
-											else
-											{	loadPlaceholders.append(',');
-												loadPlaceholders.append(placeholder.id);
+			final Task<String> prefetchTask = prefetchIds.isEmpty() ? null : http.get(placeholdersPath(prefetchIds));
+			tasks.add
+			(	http.get(sb.toString()).continueWithTask
+				(	executor,
+					task ->
+					{	TreeSet<Integer> loadPlaceholders = new TreeSet<>();
+						try
+						{	if (task.getException() != null)
+							{	throw task.getException();
+							}
+							JSONArray array = (JSONArray)new JSONTokener(task.getResult()).nextValue();
+							for (int i=0, iEnd=array.length(); i<iEnd; i++)
+							{	JSONObject row = array.getJSONObject(i);
+								int id = row.getInt("id");
+								String name = row.getString("name");
+								String contentType = row.isNull("content_type") ? "" : row.getString("content_type");
+								String contentParam = row.isNull("content_param") ? "" : row.getString("content_param");
+								String contentBegin = row.isNull("content_begin") ? "" : row.getString("content_begin");
+								String contentEnd = row.isNull("content_end") ? "" : row.getString("content_end");
+								String libsApp = row.isNull("libs_app") ? "" : row.getString("libs_app");
+								JSONArray placeholders = row.getJSONArray("placeholders");
+								for (PersonyzeAction action : newPersonyzeResult.actions)
+								{	if (action.id == id)
+									{	action.name = name;
+										action.contentType = contentType;
+										action.contentParam = contentParam;
+										action.setContent(contentBegin, contentEnd);
+										action.libsApp = libsApp;
+										action.placeholders = new ArrayList<>(placeholders.length());
+										for (int j=0, j_end=placeholders.length(); j<j_end; j++)
+										{	PersonyzePlaceholder placeholder = new PersonyzePlaceholder(placeholders.getInt(j));
+											if (noTryCache || !placeholder.fromStorage(definitions))
+											{	loadPlaceholders.add(placeholder.id);
 											}
+											action.placeholders.add(placeholder);
 										}
-										action.placeholders.add(placeholder);
+										action.toStorage(definitions, contentBlobs);
+										break;
 									}
-									action.toStorage(storage);
-									break;
 								}
 							}
 						}
-						if (loadPlaceholders != null)
-						{	return http.get(loadPlaceholders.toString()).continueWith
-							(	task2 ->
-								{	try
-									{	if (task2.getException() != null)
-										{	throw task2.getException();
-										}
-										JSONArray array2 = (JSONArray)new JSONTokener(task2.getResult()).nextValue();
-										for (int i=0, iEnd=array2.length(); i<iEnd; i++)
-										{	JSONObject row = array2.getJSONObject(i);
-											int id = row.getInt("id");
-											String name = row.getString("name");
-											String htmlId = row.isNull("html_id") ? "" : row.getString("html_id");
-											int unitsCountMax = row.getInt("units_count_max");
-											for (PersonyzeAction action : newPersonyzeResult.actions)
-											{	if (action.placeholders != null)
-												{	for (PersonyzePlaceholder placeholder : action.placeholders)
-													{	if (placeholder.id == id)
-														{	placeholder.name = name;
-															placeholder.htmlId = htmlId;
-															placeholder.unitsCountMax = unitsCountMax;
-															placeholder.toStorage(storage);
-															break;
-														}
-													}
-												}
-											}
-										}
-									}
-									catch (JSONException e)
-									{	throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
-									}
-									return null;
-								}
-							);
+						catch (JSONException e)
+						{	throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
 						}
+						timings.actionsMillis = timings.sinceStart();
+						if (loadPlaceholders.isEmpty())
+						{	return Tasks.forResult(null);
+						}
+						final ArrayList<Task<String>> placeholderTasks = new ArrayList<>(2);
+						if (prefetchTask != null)
+						{	placeholderTasks.add(prefetchTask);
+							loadPlaceholders.removeAll(prefetchIds);
+						}
+						if (!loadPlaceholders.isEmpty())
+						{	placeholderTasks.add(http.get(placeholdersPath(loadPlaceholders)));
+						}
+						return whenAllSucceed(placeholderTasks).continueWith
+						(	executor,
+							task2 ->
+							{	if (task2.getException() != null)
+								{	throw task2.getException();
+								}
+								for (Task<String> placeholderTask : placeholderTasks)
+								{	placeholdersFromResponse(newPersonyzeResult, placeholderTask.getResult());
+								}
+								timings.placeholdersMillis = timings.sinceStart();
+								return null;
+							}
+						);
 					}
-					catch (JSONException e)
-					{	throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
-					}
-					return null;
-				}
+				)
 			);
 		}
-		if (loadConditionsTask!=null && loadActionsTask==null)
-		{	return loadConditionsTask;
+		if (tasks.isEmpty())
+		{	return Tasks.forResult(null);
 		}
-		if (loadConditionsTask==null && loadActionsTask!=null)
-		{	return loadActionsTask;
-		}
-		if (loadConditionsTask == null)
-		{	// both null
-			final TaskCompletionSource<Void> asyncResult = new TaskCompletionSource<>();
-			asyncResult.setResult(null);
-			return asyncResult.getTask();
+		return whenAllSucceed(tasks).continueWith
+		(	executor,
+			task ->
+			{	timings.totalMillis = timings.sinceStart();
+				metadataTimings = timings;
+				if (task.getException() != null)
+				{	throw task.getException();
+				}
+				return null;
+			}
+		);
+	}
+
+	/**
+	 * How long the last load of conditions, actions and placeholders took, or null if none was loaded yet.
+	 */
+	PersonyzeMetadataTimings getMetadataTimings()
+	{	return metadataTimings;
+	}
+
+	private static String placeholdersPath(Set<Integer> ids)
+	{	StringBuilder sb = new StringBuilder(128);
+		sb.append("placeholders/columns/id,name,html_id,units_count_max/where/id");
+		char delim = ':';
+		for (int id : ids)
+		{	sb.append(delim);
+			sb.append(id);
+			delim = ',';
 		}
-		else
-		{	// both nonnull
-			final Task<Void> finalLoadActionsTask = loadActionsTask;
-			return loadConditionsTask.continueWithTask
-			(	task ->
-				{	if (task.getException() != null)
-					{	throw task.getException();
+		return sb.toString();
+	}
+
+	private void placeholdersFromResponse(PersonyzeResult newPersonyzeResult, String response) throws PersonyzeError
+	{	try
+		{	JSONArray array = (JSONArray)new JSONTokener(response).nextValue();
+			for (int i=0, iEnd=array.length(); i<iEnd; i++)
+			{	JSONObject row = array.getJSONObject(i);
+				int id = row.getInt("id");
+				String name = row.getString("name");
+				String htmlId = row.isNull("html_id") ? "" : row.getString("html_id");
+				int unitsCountMax = row.getInt("units_count_max");
+				for (PersonyzeAction action : newPersonyzeResult.actions)
+				{	if (action.placeholders != null)
+					{	for (PersonyzePlaceholder placeholder : action.placeholders)
+						{	if (placeholder.id == id)
+							{	placeholder.name = name;
+								placeholder.htmlId = htmlId;
+								placeholder.unitsCountMax = unitsCountMax;
+								placeholder.toStorage(definitions);
+								break;
+							}
+						}
 					}
-					return finalLoadActionsTask;
 				}
-			);
+			}
 		}
+		catch (JSONException e)
+		{	throw new PersonyzeError("JSON error: "+e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Complete when all the tasks complete. If some failed, fail with their errors joined, so no error is lost.
+	 */
+	private static <T> Task<Void> whenAllSucceed(final List<Task<T>> tasks)
+	{	return Tasks.whenAll(tasks).continueWith
+		(	executor,
+			task ->
+			{	PersonyzeError first = null;
+				StringBuilder messages = null;
+				int nErrors = 0;
+				for (Task<T> t : tasks)
+				{	Exception e = t.getException();
+					if (e != null)
+					{	if (nErrors++ == 0)
+						{	first = e instanceof PersonyzeError ? (PersonyzeError)e : new PersonyzeError(e.getLocalizedMessage());
+							messages = new StringBuilder(first.getMessage());
+						}
+						else
+						{	messages.append("; ").append(e.getLocalizedMessage());
+						}
+					}
+				}
+				if (nErrors == 0)
+				{	return null;
+				}
+				if (nErrors == 1)
+				{	throw first;
+				}
+				throw new PersonyzeError(messages.toString(), first.getType());
+			}
+		);
 	}
 
 	/**
@@ -643,39 +1018,64 @@ public class PersonyzeTracker
 	 */
 	void reportActionStatus(Context context, int actionId, String status, String arg)
 	{	if (actionId>0 && status!=null && status.length()>0)
-		{	synchronized (this)
-			{	String actionIdStr = ""+actionId;
+		{	commandsLock.lock();
+			try
+			{	drainQueue();
 				// Already?
-				for (int i=commands.size()-1; i>=0; i--)
-				{	String[] command = commands.get(i);
-					if (command.length==2 && command[0].equals("Navigate"))
-					{	break;
-					}
-					if (command.length==4 && command[1].equals(actionIdStr) && command[0].equals("Action Status"))
-					{	if (status.equals("executed") || status.equals(command[2]))
-						{	return; // yes, already reported
-						}
-					}
+				HashSet<String> statuses = reportedStatuses.get(actionId);
+				if (statuses!=null && (status.equals("executed") || statuses.contains(status)))
+				{	return; // yes, already reported
 				}
 				// Report
-				addCommand("Action Status", actionIdStr, status, arg);
+				queueCommand(new PersonyzeCommand(PersonyzeCommand.Op.ACTION_STATUS, actionId, status, arg));
 				if (status.equals("close"))
-				{	int nSessions = intVal(arg);
+				{	final int nSessions = intVal(arg);
 					if (nSessions > 0)
-					{	blockedActions.put(actionId, nSessions);
-						blockedActions.save();
+					{	executor.execute
+						(	() ->
+							{	if (blockedActions != null)
+								{	blockedActions.put(actionId, nSessions);
+									blockedActions.save();
+								}
+							}
+						);
 					}
 				}
 			}
-			flush(context, false, false);
+			finally
+			{	commandsLock.unlock();
+			}
+			if (!scheduler.isEnabled())
+			{	flushWhenCheap(context);
+			}
 		}
 	}
 
+	/**
+	 * Before FORMAT_DEFINITIONS_CACHE, definitions were stored in SharedPreferences, key per field, so remove them once.
+	 */
+	private void removeLegacyDefinitions()
+	{	if (storage.getInt("Storage Format", 0) < FORMAT_DEFINITIONS_CACHE)
+		{	SharedPreferences.Editor editor = storage.edit();
+			for (String key : storage.getAll().keySet())
+			{	if (key.startsWith("Condition ") || key.startsWith("Action ") || key.startsWith("Placeholder "))
+				{	editor.remove(key);
+				}
+			}
+			editor.putInt("Storage Format", FORMAT_DEFINITIONS_CACHE);
+			editor.apply();
+		}
+	}
+
+	/**
+	 * Must be called with flushLock locked.
+	 */
 	private Task<PersonyzeResult> doInitialize(Context context)
 	{	if (queryingResults != null) // already initialized?
 		{	// ignore error in previous request
 			return queryingResults.continueWith
-			(	task ->
+			(	executor,
+				task ->
 				{	if (task.isSuccessful())
 					{	return task.getResult();
 					}
@@ -685,55 +1085,87 @@ public class PersonyzeTracker
 		}
 		final TaskCompletionSource<PersonyzeResult> asyncResult = new TaskCompletionSource<>();
 		queryingResults = asyncResult.getTask(); // set initialized
-		try
-		{	if (context == null)
-			{	throw new PersonyzeError("No context given");
-			}
-			http.setContext(context);
-			storage = context.getSharedPreferences("Personyze Tracker", Context.MODE_PRIVATE);
-			timeZone = TimeZone.getDefault().getRawOffset() / (60*60*1000.0);
-			language = context.getResources().getConfiguration().locale.getLanguage();
-			os = String.format("Android/%s (%s)", Build.VERSION.RELEASE, Build.VERSION.CODENAME);
-			if
-			(	(context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK)
-				>=
-				Configuration.SCREENLAYOUT_SIZE_LARGE
-			)
-			{	deviceType = "tablet";
-			}
-			else
-			{	deviceType = "phone";
-			}
-			blockedActions = new StoredIntMap("Blocked Actions");
-			pastSessions = new PastSessions();
-			apiKeyHash = http.apiKey.hashCode();
-			personyzeResult = null;
-			// restore current state
-			userId = storage.getInt("User ID", 0);
-			if (userId == 0)
-			{	while (userId == 0)
-				{	userId = new Random().nextInt();
+		executor.execute
+		(	() ->
+			{	try
+				{	if (context == null)
+					{	throw new PersonyzeError("No context given");
+					}
+					http.setContext(context);
+					storage = context.getSharedPreferences("Personyze Tracker", Context.MODE_PRIVATE);
+					if (definitions == null)
+					{	storageSession = new PersonyzeStorageSession(storage);
+						definitions = new PersonyzeDefinitionsCache(new File(context.getCacheDir(), "Personyze Definitions"));
+						definitions.open();
+						contentBlobs = new PersonyzeBlobStore(new File(context.getCacheDir(), "Personyze Content"));
+						removeLegacyDefinitions();
+					}
+					timeZone = TimeZone.getDefault().getRawOffset() / (60*60*1000.0);
+					language = context.getResources().getConfiguration().locale.getLanguage();
+					os = String.format("Android/%s (%s)", Build.VERSION.RELEASE, Build.VERSION.CODENAME);
+					if
+					(	(context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK)
+						>=
+						Configuration.SCREENLAYOUT_SIZE_LARGE
+					)
+					{	deviceType = "tablet";
+					}
+					else
+					{	deviceType = "phone";
+					}
+					blockedActions = new StoredIntMap("Blocked Actions");
+					pastSessions = new PastSessions();
+					if (journal != null)
+					{	// commands that were not delivered before the process exited go before the ones logged since
+						ArrayList<PersonyzeCommand> replayed = journal.replay();
+						commandsLock.lock();
+						try
+						{	drainQueue();
+							commands.addAll(0, replayed);
+							reindexStatuses();
+						}
+						finally
+						{	commandsLock.unlock();
+						}
+						int length = 0;
+						for (PersonyzeCommand command : replayed)
+						{	length += command.approxLength();
+						}
+						scheduler.commandsRestored(replayed.size(), length);
+					}
+					apiKeyHash = http.apiKey.hashCode();
+					personyzeResult = null;
+					// restore current state
+					userId = storage.getInt("User ID", 0);
+					if (userId == 0)
+					{	while (userId == 0)
+						{	userId = new Random().nextInt();
+						}
+						SharedPreferences.Editor editor = storage.edit();
+						editor.putInt("User ID", userId);
+						editor.apply();
+					}
+					wantNewSession = storage.getBoolean("New Session", false);
+					sessionId = storage.getString("User", null);
+					notiLastCheckTime = storage.getLong("Noti Last Check Time", 0);
+					cacheVersion = storage.getInt("Cache Version", 0);
+					if (storage.getInt("Api Key Hash", 0) != apiKeyHash)
+					{	// delete cached conditions and actions from (possible) different account
+						SharedPreferences.Editor editor = storage.edit();
+						clearCacheNow(context, editor);
+						editor.apply();
+					}
+					PersonyzeResult tr = new PersonyzeResult();
+					if (tr.fromStorage(storage, definitions, contentBlobs, context))
+					{	personyzeResult = tr;
+					}
+					asyncResult.setResult(personyzeResult);
+				}
+				catch (PersonyzeError error)
+				{	asyncResult.setException(error);
 				}
-				SharedPreferences.Editor editor = storage.edit();
-				editor.putInt("User ID", userId);
-				editor.apply();
-			}
-			wantNewSession = storage.getBoolean("New Session", false);
-			sessionId = storage.getString("User", null);
-			notiLastCheckTime = storage.getLong("Noti Last Check Time", 0);
-			cacheVersion = storage.getInt("Cache Version", 0);
-			if (storage.getInt("Api Key Hash", 0) != apiKeyHash)
-			{	clearCache(context); // delete cached conditions and actions from (possible) different account
-			}
-			PersonyzeResult tr = new PersonyzeResult();
-			if (tr.fromStorage(storage, context))
-			{	personyzeResult = tr;
 			}
-			asyncResult.setResult(personyzeResult);
-		}
-		catch (PersonyzeError error)
-		{	asyncResult.setException(error);
-		}
+		);
 		return asyncResult.getTask();
 	}
 
@@ -756,10 +1188,22 @@ public class PersonyzeTracker
 	 * @param notiEnabled If true, will register to receive notifications from Personyze. The registered service will run on the background, and automatically restart after device reboot. If notiEnabled is set to false, the notification service will be deregistered.
 	 */
 	public synchronized void initialize(Context context, String apiKey, boolean notiEnabled)
-	{	if (http.apiKey==null || !http.apiKey.equals(apiKey))
-		{	queryingResults = null;
+	{	appContext = context.getApplicationContext();
+		http.setContext(appContext);
+		network.setContext(appContext);
+		if (journal == null)
+		{	journal = new PersonyzeJournal(new File(appContext.getFilesDir(), "Personyze Journal"), executor);
+		}
+		if (http.apiKey==null || !http.apiKey.equals(apiKey))
+		{	synchronized (flushLock)
+			{	queryingResults = null;
+			}
 			http.apiKey = apiKey;
 		}
+		if (warmUpEnabled && !warmedUp)
+		{	warmedUp = true;
+			warmUp();
+		}
 		if (notiEnabled != this.notiEnabled)
 		{	this.notiEnabled = notiEnabled;
 			if (notiEnabled)
@@ -782,16 +1226,91 @@ public class PersonyzeTracker
 		}
 	}
 
+	/**
+	 * Send queued events automatically, without waiting for {@link #done(Context)} or {@link #getResult(Context)}.
+	 * By default this is disabled, and action status reports are sent immediately.
+	 * @param maxCommands Send when this number of events is queued. 0 means no limit.
+	 * @param maxBytes Send when queued events take approximately this number of bytes. 0 means no limit.
+	 * @param maxDelayMillis Send when the oldest queued event waited this number of milliseconds. 0 means no limit.
+	 */
+	public void setAutoFlush(int maxCommands, int maxBytes, long maxDelayMillis)
+	{	scheduler.configure(maxCommands, maxBytes, maxDelayMillis);
+	}
+
+	/**
+	 * Stop the network threads of the SDK, e.g. when your application is about to exit. Queued events are kept on disk, and will be sent after next {@link #initialize(Context, String)}.
+	 * If you set your own transport with {@link #setTransport(PersonyzeTransport)}, it's shut down too, so set it again before initializing.
+	 */
+	public synchronized void shutdown()
+	{	http.shutdown();
+		warmedUp = false;
+	}
+
+	/**
+	 * Stop sending requests for a while, if Personyze server seems to be down. Meanwhile events stay queued, {@link #getResult(Context)} returns the last result, and notifications are not checked.
+	 * By default the breaker opens when 5 of last 10 requests failed, and probes the server after 30 seconds.
+	 * @param windowSize Number of last requests to count. 0 disables the breaker.
+	 * @param errorRate Share of failed requests, from 0 to 1, that opens the breaker.
+	 * @param openMillis How long to wait before probing the server. If the probe fails, or has no outcome in this time, this time doubles.
+	 * @throws IllegalArgumentException If windowSize is negative, errorRate is not above 0 and up to 1, or openMillis is not positive.
+	 */
+	public void setCircuitBreaker(int windowSize, double errorRate, long openMillis)
+	{	http.breaker.configure(windowSize, errorRate, openMillis);
+	}
+
+	/**
+	 * Connect to Personyze servers in background during {@link #initialize(Context, String)}, so the first {@link #getResult(Context)} and the first HTML action don't wait for DNS, TCP and TLS handshake.
+	 * Call this before initializing. By default this is disabled.
+	 */
+	public synchronized void setWarmUp(boolean enabled)
+	{	warmUpEnabled = enabled;
+	}
+
+	/**
+	 * The REST gateway gets a HEAD request, that leaves a keep-alive connection in the transport.
+	 * WebView has its own network stack, so its connections can't be opened from here, but it uses the system resolver, so the host of WEBVIEW_BASE_URL is resolved to have it in DNS cache.
+	 */
+	private void warmUp()
+	{	http.warmUp(); // if it fails, the first request connects as usual
+		final String webViewHost = Uri.parse(WEBVIEW_BASE_URL).getHost();
+		Thread resolver = new Thread
+		(	() ->
+			{	try
+				{	InetAddress.getAllByName(webViewHost);
+				}
+				catch (UnknownHostException e)
+				{	// WebView will report this
+				}
+			},
+			"Personyze DNS"
+		);
+		resolver.setDaemon(true);
+		resolver.start();
+	}
+
+	/**
+	 * Use another HTTP client to talk to Personyze server. Call this before {@link #initialize(Context, String)}.
+	 * @param transport E.g. {@link PersonyzeUrlConnectionTransport}, or your own implementation. By default it's {@link PersonyzeVolleyTransport}.
+	 */
+	public void setTransport(PersonyzeTransport transport)
+	{	http.setTransport(transport);
+	}
+
+	/**
+	 * Compress request bodies with gzip, and send them with "Content-Encoding: gzip". Responses are always accepted compressed.
+	 * @param minBytes Compress bodies that are at least this number of bytes long. 0 disables compression, and this is the default.
+	 */
+	public void setGzipRequests(int minBytes)
+	{	http.gzipMinBytes = minBytes;
+	}
+
 	/**
      * Send navigation event to Personyze. This is equivalent to a page view on your site.
      * @param documentName Document identifier, that represents navigation within your app. You can use any name, e.g. "Cart page".
      */
 	public void navigate(String documentName)
 	{	if (documentName!=null && !documentName.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Navigate", "urn:personyze:doc:"+documentName);
-				isNavigate = true;
-			}
+		{	addCommand(PersonyzeCommand.Op.NAVIGATE, documentName);
 		}
 	}
 
@@ -802,9 +1321,7 @@ public class PersonyzeTracker
 	 */
 	public void logUserData(String field, String value)
 	{	if (field!=null && !field.isEmpty())
-		{	synchronized (this)
-			{	addCommand("User profile", field, value);
-			}
+		{	queueCommand(new PersonyzeCommand(PersonyzeCommand.Op.USER_PROFILE, 0, field, value));
 		}
 	}
 
@@ -815,9 +1332,7 @@ public class PersonyzeTracker
 	 */
 	public void productViewed(String productId)
 	{	if (productId!=null && !productId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Product Viewed", productId);
-			}
+		{	addCommand(PersonyzeCommand.Op.PRODUCT_VIEWED, productId);
 		}
 	}
 
@@ -828,9 +1343,7 @@ public class PersonyzeTracker
 	 */
 	public void productAddedToCart(String productId)
 	{	if (productId!=null && !productId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Product Added to cart", productId);
-			}
+		{	addCommand(PersonyzeCommand.Op.PRODUCT_ADDED_TO_CART, productId);
 		}
 	}
 
@@ -841,9 +1354,7 @@ public class PersonyzeTracker
 	 */
 	public void productLiked(String productId)
 	{	if (productId!=null && !productId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Product Liked", productId);
-			}
+		{	addCommand(PersonyzeCommand.Op.PRODUCT_LIKED, productId);
 		}
 	}
 
@@ -854,9 +1365,7 @@ public class PersonyzeTracker
 	 */
 	public void productPurchased(String productId)
 	{	if (productId!=null && !productId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Product Purchased", productId);
-			}
+		{	addCommand(PersonyzeCommand.Op.PRODUCT_PURCHASED, productId);
 		}
 	}
 
@@ -867,9 +1376,7 @@ public class PersonyzeTracker
 	 */
 	public void productUnliked(String productId)
 	{	if (productId!=null && !productId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Product Unliked", productId);
-			}
+		{	addCommand(PersonyzeCommand.Op.PRODUCT_UNLIKED, productId);
 		}
 	}
 
@@ -880,31 +1387,29 @@ public class PersonyzeTracker
 	 */
 	public void productRemovedFromCart(String productId)
 	{	if (productId!=null && !productId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Product Removed from cart", productId);
-			}
+		{	addCommand(PersonyzeCommand.Op.PRODUCT_REMOVED_FROM_CART, productId);
 		}
 	}
 
 	/**
 	 * Send "Products Purchased" event to Personyze. This event converts all the products that were Added to cart to Purchased.
 	 */
-	public synchronized void productsPurchased()
-	{	addCommand("Products Purchased");
+	public void productsPurchased()
+	{	addCommand(PersonyzeCommand.Op.PRODUCTS_PURCHASED, null);
 	}
 
 	/**
 	 * Send "Products Unliked" event to Personyze. This event converts all the products that were Liked to Viewed.
 	 */
-	public synchronized void productsUnliked()
-	{	addCommand("Products Unliked");
+	public void productsUnliked()
+	{	addCommand(PersonyzeCommand.Op.PRODUCTS_UNLIKED, null);
 	}
 
 	/**
 	 * Send "Products Removed from cart" event to Personyze. This event converts all the products that were Added to cart to Viewed.
 	 */
-	public synchronized void productsRemovedFromCart()
-	{	addCommand("Products Removed from cart");
+	public void productsRemovedFromCart()
+	{	addCommand(PersonyzeCommand.Op.PRODUCTS_REMOVED_FROM_CART, null);
 	}
 
 	/**
@@ -914,9 +1419,7 @@ public class PersonyzeTracker
 	 */
 	public void articleViewed(String articleId)
 	{	if (articleId!=null && !articleId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Article Viewed", articleId);
-			}
+		{	addCommand(PersonyzeCommand.Op.ARTICLE_VIEWED, articleId);
 		}
 	}
 
@@ -927,9 +1430,7 @@ public class PersonyzeTracker
 	 */
 	public void articleLiked(String articleId)
 	{	if (articleId!=null && !articleId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Article Liked", articleId);
-			}
+		{	addCommand(PersonyzeCommand.Op.ARTICLE_LIKED, articleId);
 		}
 	}
 
@@ -940,9 +1441,7 @@ public class PersonyzeTracker
 	 */
 	public void articleCommented(String articleId)
 	{	if (articleId!=null && !articleId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Article Commented", articleId);
-			}
+		{	addCommand(PersonyzeCommand.Op.ARTICLE_COMMENTED, articleId);
 		}
 	}
 
@@ -953,9 +1452,7 @@ public class PersonyzeTracker
 	 */
 	public void articleUnliked(String articleId)
 	{	if (articleId!=null && !articleId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Article Unliked", articleId);
-			}
+		{	addCommand(PersonyzeCommand.Op.ARTICLE_UNLIKED, articleId);
 		}
 	}
 
@@ -966,9 +1463,7 @@ public class PersonyzeTracker
 	 */
 	public void articleGoal(String articleId)
 	{	if (articleId!=null && !articleId.isEmpty())
-		{	synchronized (this)
-			{	addCommand("Article Goal", articleId);
-			}
+		{	addCommand(PersonyzeCommand.Op.ARTICLE_GOAL, articleId);
 		}
 	}
 
@@ -985,12 +1480,60 @@ public class PersonyzeTracker
 
 	/**
 	 * What conditions are matching, and what actions are to be presented. This will send pending events to Personyze. This library remembers (stores to memory) the result, and until you call startNewSession(), you can get current result, even after object recreation.
+	 * The work is done in background. Listeners that you add to the returned task without executor are called on the main thread.
 	 * @param context The context of your application (usually an Activity).
 	 */
 	public Task<PersonyzeResult> getResult(Context context)
 	{	return flush(context, true, false);
 	}
 
+	/**
+	 * Like {@link #getResult(Context)}, but doesn't wait longer than budgetMillis. If the new result is not ready by then, returns the last known one, or fails with {@link PersonyzeError.Type#TIMEOUT} if there's none yet.
+	 * The request continues in background, so the events are sent, and the next call will return the new result.
+	 * @param context The context of your application (usually an Activity).
+	 * @param budgetMillis How long the user can wait.
+	 */
+	public Task<PersonyzeResult> getResult(Context context, final long budgetMillis)
+	{	final Task<PersonyzeResult> task = getResult(context);
+		if (task.isComplete())
+		{	return task;
+		}
+		final TaskCompletionSource<PersonyzeResult> asyncResult = new TaskCompletionSource<>();
+		final Runnable onDeadline = () -> executor.execute
+		(	() ->
+			{	PersonyzeResult cached = personyzeResult;
+				if (cached != null)
+				{	asyncResult.trySetResult(cached);
+				}
+				else
+				{	asyncResult.trySetException(new PersonyzeError("No result in "+budgetMillis+" ms", PersonyzeError.Type.TIMEOUT));
+				}
+			}
+		);
+		handler.postDelayed(onDeadline, budgetMillis);
+		task.addOnCompleteListener
+		(	executor,
+			task2 ->
+			{	handler.removeCallbacks(onDeadline);
+				if (task2.getException() != null)
+				{	asyncResult.trySetException(task2.getException());
+				}
+				else
+				{	asyncResult.trySetResult(task2.getResult());
+				}
+			}
+		);
+		return asyncResult.getTask();
+	}
+
+	/**
+	 * Set timeout and retries for one kind of requests. By default tracker requests wait 5 seconds and are retried 2 times, all within 10 seconds, and images wait 5 seconds.
+	 * @param policy null to restore the default.
+	 */
+	public void setRequestPolicy(PersonyzeRequestPolicy.Endpoint endpoint, PersonyzeRequestPolicy policy)
+	{	http.setPolicy(endpoint, policy);
+	}
+
 	/**
 	 * This asks Personyze to start new session for current user. For each user Personyze counts number of sessions.
 	 * Call this when user closes and reopens the application. Each session lasts not more than 1.5 hours, so it will
@@ -1013,45 +1556,27 @@ public class PersonyzeTracker
 	 * Normally you don't need to call this.
 	 */
 	public Task<Void> clearCache(Context context)
-	{	queryingResults = doInitialize(context).continueWith
-		(	task ->
-			{	if (task.getException() != null)
-				{	throw task.getException();
-				}
-				if (storage == null)
-				{	throw new PersonyzeError("PersonyzeTracker not initialized");
-				}
-				Set<String> conditions = storage.getStringSet("Conditions", null);
-				Set<String> actions = storage.getStringSet("Actions", null);
-				SharedPreferences.Editor editor = storage.edit();
-				editor.clear();
-				// the following settings don't depend on cacheVersion
-				editor.putInt("User ID", userId);
-				editor.putInt("Api Key Hash", apiKeyHash);
-				if (wantNewSession)
-				{	editor.putBoolean("New Session", true);
-				}
-				if (sessionId != null)
-				{	editor.putString("User", sessionId);
-				}
-				if (notiLastCheckTime != 0)
-				{	editor.putLong("Noti Last Check Time", notiLastCheckTime);
-				}
-				if (cacheVersion != 0)
-				{	editor.putInt("Cache Version", cacheVersion);
-				}
-				if (conditions != null)
-				{	editor.putStringSet("Conditions", conditions);
-				}
-				if (actions != null)
-				{	editor.putStringSet("Actions", actions);
+	{	Task<PersonyzeResult> clearTask;
+		synchronized (flushLock)
+		{	clearTask = queryingResults = doInitialize(context).continueWith
+			(	executor,
+				task ->
+				{	if (task.getException() != null)
+					{	throw task.getException();
+					}
+					if (storage == null)
+					{	throw new PersonyzeError("PersonyzeTracker not initialized");
+					}
+					SharedPreferences.Editor editor = storage.edit();
+					clearCacheNow(context, editor);
+					editor.apply();
+					return task.getResult();
 				}
-				editor.apply();
-				return task.getResult();
-			}
-		);
-		return queryingResults.continueWith
-		(	task ->
+			);
+		}
+		return clearTask.continueWith
+		(	executor,
+			task ->
 			{	if (task.getException() != null)
 				{	throw task.getException();
 				}
@@ -1060,6 +1585,41 @@ public class PersonyzeTracker
 		);
 	}
 
+	/**
+	 * Delete cached definitions, action content and data, and the stored settings that depend on cacheVersion. Call on executor.
+	 * @param editor Where to put the storage changes. Keys that it already has are kept, because clear() is applied before them.
+	 */
+	private void clearCacheNow(Context context, SharedPreferences.Editor editor)
+	{	Set<String> conditions = storage.getStringSet("Conditions", null);
+		Set<String> actions = storage.getStringSet("Actions", null);
+		editor.clear();
+		// the following settings don't depend on cacheVersion
+		editor.putInt("User ID", userId);
+		editor.putInt("Api Key Hash", apiKeyHash);
+		editor.putInt("Storage Format", FORMAT_DEFINITIONS_CACHE);
+		if (wantNewSession)
+		{	editor.putBoolean("New Session", true);
+		}
+		if (sessionId != null)
+		{	editor.putString("User", sessionId);
+		}
+		if (notiLastCheckTime != 0)
+		{	editor.putLong("Noti Last Check Time", notiLastCheckTime);
+		}
+		if (cacheVersion != 0)
+		{	editor.putInt("Cache Version", cacheVersion);
+		}
+		if (conditions != null)
+		{	editor.putStringSet("Conditions", conditions);
+		}
+		if (actions != null)
+		{	editor.putStringSet("Actions", actions);
+		}
+		definitions.clear();
+		contentBlobs.clear();
+		deleteActionData(context, null);
+	}
+
 	public Task<Void> checkForNotification(Context context)
 	{	return checkForNotification(context, true);
 	}
@@ -1084,60 +1644,67 @@ public class PersonyzeTracker
 				)
 			);
 		}
-		queryingResults = doInitialize(context).continueWithTask
-		(	task ->
-			{	if (task.getException() != null)
-				{	throw task.getException();
-				}
-				long now = System.currentTimeMillis();
-				if (sessionId == null || notiLastCheckTime+(evenIfAlreadyCheckedRecently ? 1000 : PERIODIC_INTERVAL_MILLIS) >= now)
-				{	final TaskCompletionSource<PersonyzeResult> asyncResult2 = new TaskCompletionSource<>();
-					asyncResult2.setResult(personyzeResult);
-					return asyncResult2.getTask();
-				}
-				notiLastCheckTime = now;
-				SharedPreferences.Editor editor = storage.edit();
-				editor.putLong("Noti Last Check Time", notiLastCheckTime);
-				editor.apply();
-				return http.get("current_notification/where/user_id="+userId+"&session_id="+restUriEncode(sessionId)).continueWithTask
-				(	task2 ->
-					{	if (task2.getException() != null)
-						{	throw task2.getException();
-						}
-						String json = task2.getResult();
-						if (json.equals("null"))
-						{	final TaskCompletionSource<PersonyzeResult> asyncResult2 = new TaskCompletionSource<>();
-							asyncResult2.setResult(personyzeResult);
-							return asyncResult2.getTask();
-						}
-						PersonyzeNotification personyzeNoti = new PersonyzeNotification(json);
-						return personyzeNoti.toNotification(context).continueWithTask
-						(	task3 ->
-							{	if (task3.getException() != null)
-								{	throw task3.getException();
-								}
-								Notification noti = task3.getResult();
-								// Clear the notification on Personyze server
-								return http.delete("current_notification/where/user_id="+userId+"&session_id="+restUriEncode(sessionId)+"&message_id="+personyzeNoti.messageId).continueWith
-								(	task4 ->
-									{	if (task4.getException() != null)
-										{	throw task4.getException();
-										}
-										String rowsAffected = task4.getResult();
-										if (!rowsAffected.equals("0") && !rowsAffected.equals("1"))
-										{	throw new PersonyzeError("Couldn't deliver the notification");
-										}
-										NotificationManagerCompat.from(context).notify(NOTI_CHANNEL_ID, NOTI_ID, noti);
-										return personyzeResult;
-									}
-								);
-							}
-						);
+		Task<PersonyzeResult> checkTask;
+		synchronized (flushLock)
+		{	checkTask = queryingResults = doInitialize(context).continueWithTask
+			(	executor,
+				task ->
+				{	if (task.getException() != null)
+					{	throw task.getException();
 					}
-				);
-			}
-		);
-		return queryingResults.continueWith(task -> null);
+					long now = System.currentTimeMillis();
+					if (sessionId == null || notiLastCheckTime+(evenIfAlreadyCheckedRecently ? 1000 : PERIODIC_INTERVAL_MILLIS) >= now || http.breaker.getState()==PersonyzeCircuitBreaker.State.OPEN)
+					{	final TaskCompletionSource<PersonyzeResult> asyncResult2 = new TaskCompletionSource<>();
+						asyncResult2.setResult(personyzeResult);
+						return asyncResult2.getTask();
+					}
+					notiLastCheckTime = now;
+					SharedPreferences.Editor editor = storage.edit();
+					editor.putLong("Noti Last Check Time", notiLastCheckTime);
+					editor.apply();
+					return http.get("current_notification/where/user_id="+userId+"&session_id="+restUriEncode(sessionId), PersonyzeTransport.Lane.BACKGROUND, PersonyzeRequestPolicy.Endpoint.NOTIFICATION).continueWithTask
+					(	executor,
+						task2 ->
+						{	if (task2.getException() != null)
+							{	throw task2.getException();
+							}
+							String json = task2.getResult();
+							if (json.equals("null"))
+							{	final TaskCompletionSource<PersonyzeResult> asyncResult2 = new TaskCompletionSource<>();
+								asyncResult2.setResult(personyzeResult);
+								return asyncResult2.getTask();
+							}
+							PersonyzeNotification personyzeNoti = new PersonyzeNotification(json);
+							return personyzeNoti.toNotification(context).continueWithTask
+							(	executor,
+								task3 ->
+								{	if (task3.getException() != null)
+									{	throw task3.getException();
+									}
+									Notification noti = task3.getResult();
+									// Clear the notification on Personyze server
+									return http.delete("current_notification/where/user_id="+userId+"&session_id="+restUriEncode(sessionId)+"&message_id="+personyzeNoti.messageId, PersonyzeTransport.Lane.BACKGROUND, PersonyzeRequestPolicy.Endpoint.NOTIFICATION).continueWith
+									(	executor,
+										task4 ->
+										{	if (task4.getException() != null)
+											{	throw task4.getException();
+											}
+											String rowsAffected = task4.getResult();
+											if (!rowsAffected.equals("0") && !rowsAffected.equals("1"))
+											{	throw new PersonyzeError("Couldn't deliver the notification");
+											}
+											NotificationManagerCompat.from(context).notify(NOTI_CHANNEL_ID, NOTI_ID, noti);
+											return personyzeResult;
+										}
+									);
+								}
+							);
+						}
+					);
+				}
+			);
+		}
+		return checkTask.continueWith(executor, task -> null);
 	}
 
 	String restUriEncode(String value)
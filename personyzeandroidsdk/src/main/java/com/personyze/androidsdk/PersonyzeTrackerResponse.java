@@ -0,0 +1,303 @@
+package com.personyze.androidsdk;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Response of "tracker-v1" request.
+ * It's decoded with a pull parser directly to conditions and actions, without building the JSON tree, because actions data can be big (e.g. recommended products).
+ */
+class PersonyzeTrackerResponse
+{	String sessionId;
+	int cacheVersion;
+	ArrayList<PersonyzeCondition> conditions;
+	ArrayList<PersonyzeAction> actions;
+	int[] dismissConditions;
+	int[] dismissActions;
+
+	/**
+	 * @param defaultCacheVersion Cache version to use, if the server returned 0.
+	 * @throws IOException If the response is not valid JSON, or required fields are missing.
+	 */
+	static PersonyzeTrackerResponse parse(String response, int defaultCacheVersion) throws IOException
+	{	PersonyzeTrackerResponse result = new PersonyzeTrackerResponse();
+		boolean hasCacheVersion = false;
+		try (JsonReader reader = new JsonReader(new StringReader(response)))
+		{	reader.beginObject();
+			while (reader.hasNext())
+			{	switch (reader.nextName())
+				{	case "session_id":
+						if (reader.peek() == JsonToken.NULL)
+						{	reader.nextNull();
+						}
+						else
+						{	result.sessionId = reader.nextString();
+						}
+						break;
+					case "cache_version":
+						result.cacheVersion = reader.nextInt();
+						hasCacheVersion = true;
+						break;
+					case "conditions":
+						result.conditions = readConditions(reader);
+						break;
+					case "actions":
+						result.actions = readActions(reader);
+						break;
+					case "dismiss_conditions":
+						result.dismissConditions = readIds(reader);
+						break;
+					case "dismiss_actions":
+						result.dismissActions = readIds(reader);
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		catch (IllegalStateException | NumberFormatException e)
+		{	throw new IOException(e.getLocalizedMessage(), e); // unexpected value type
+		}
+		if (!hasCacheVersion || result.conditions==null || result.actions==null || result.dismissConditions==null || result.dismissActions==null)
+		{	throw new IOException("Required field missing in response");
+		}
+		if (result.cacheVersion == 0)
+		{	result.cacheVersion = defaultCacheVersion;
+		}
+		for (PersonyzeAction action : result.actions)
+		{	action.cacheVersion = result.cacheVersion;
+		}
+		return result;
+	}
+
+	private static ArrayList<PersonyzeCondition> readConditions(JsonReader reader) throws IOException
+	{	ArrayList<PersonyzeCondition> conditions = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext())
+		{	Integer id = null;
+			reader.beginObject();
+			while (reader.hasNext())
+			{	if (reader.nextName().equals("id"))
+				{	id = reader.nextInt();
+				}
+				else
+				{	reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (id == null)
+			{	throw new IOException("Condition without ID");
+			}
+			conditions.add(new PersonyzeCondition(id));
+		}
+		reader.endArray();
+		return conditions;
+	}
+
+	private static ArrayList<PersonyzeAction> readActions(JsonReader reader) throws IOException
+	{	ArrayList<PersonyzeAction> actions = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext())
+		{	Integer id = null;
+			HashMap<String, String> data = null;
+			reader.beginObject();
+			while (reader.hasNext())
+			{	switch (reader.nextName())
+				{	case "id":
+						id = reader.nextInt();
+						break;
+					case "data":
+						if (reader.peek() == JsonToken.BEGIN_OBJECT)
+						{	data = new HashMap<>();
+							reader.beginObject();
+							while (reader.hasNext())
+							{	String key = reader.nextName();
+								data.put(key, readAsString(reader));
+							}
+							reader.endObject();
+						}
+						else
+						{	reader.skipValue();
+						}
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (id == null)
+			{	throw new IOException("Action without ID");
+			}
+			actions.add(new PersonyzeAction(id, data, 0));
+		}
+		reader.endArray();
+		return actions;
+	}
+
+	private static int[] readIds(JsonReader reader) throws IOException
+	{	int[] ids = new int[8];
+		int n = 0;
+		reader.beginArray();
+		while (reader.hasNext())
+		{	if (n == ids.length)
+			{	int[] newIds = new int[n*2];
+				System.arraycopy(ids, 0, newIds, 0, n);
+				ids = newIds;
+			}
+			ids[n++] = reader.nextInt();
+		}
+		reader.endArray();
+		int[] result = new int[n];
+		System.arraycopy(ids, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * Read any value as string, exactly like JSONObject.getString() did before: strings as is, numbers as org.json parses and prints them, objects and arrays as JSON.
+	 */
+	static String readAsString(JsonReader reader) throws IOException
+	{	switch (reader.peek())
+		{	case BOOLEAN:
+				return reader.nextBoolean() ? "true" : "false";
+			case NULL:
+				reader.nextNull();
+				return "null";
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				StringBuilder buffer = new StringBuilder();
+				copyValue(reader, buffer);
+				return buffer.toString();
+			case NUMBER:
+				return String.valueOf(parseNumber(reader.nextString()));
+			default:
+				return reader.nextString();
+		}
+	}
+
+	/**
+	 * Write the value like JSONObject.toString() does.
+	 */
+	private static void copyValue(JsonReader reader, StringBuilder out) throws IOException
+	{	switch (reader.peek())
+		{	case BEGIN_OBJECT:
+				reader.beginObject();
+				out.append('{');
+				boolean first = true;
+				while (reader.hasNext())
+				{	if (!first)
+					{	out.append(',');
+					}
+					first = false;
+					quote(reader.nextName(), out);
+					out.append(':');
+					copyValue(reader, out);
+				}
+				reader.endObject();
+				out.append('}');
+				break;
+			case BEGIN_ARRAY:
+				reader.beginArray();
+				out.append('[');
+				first = true;
+				while (reader.hasNext())
+				{	if (!first)
+					{	out.append(',');
+					}
+					first = false;
+					copyValue(reader, out);
+				}
+				reader.endArray();
+				out.append(']');
+				break;
+			case BOOLEAN:
+				out.append(reader.nextBoolean());
+				break;
+			case NULL:
+				reader.nextNull();
+				out.append("null");
+				break;
+			case NUMBER:
+				out.append(numberToString(parseNumber(reader.nextString())));
+				break;
+			default:
+				quote(reader.nextString(), out);
+		}
+	}
+
+	/**
+	 * Parse number literal like JSONTokener does: without '.' as long if it fits, otherwise as double.
+	 */
+	private static Number parseNumber(String literal)
+	{	if (literal.indexOf('.') == -1)
+		{	try
+			{	return Long.parseLong(literal);
+			}
+			catch (NumberFormatException e)
+			{	// like 1e2, or too big
+			}
+		}
+		return Double.valueOf(literal);
+	}
+
+	/**
+	 * Print number like JSONObject.numberToString() does: whole numbers without fraction.
+	 */
+	private static String numberToString(Number number)
+	{	if (number instanceof Long)
+		{	return number.toString();
+		}
+		double value = number.doubleValue();
+		if (number.equals(-0d))
+		{	return "-0";
+		}
+		long longValue = (long)value;
+		return value==(double)longValue ? Long.toString(longValue) : number.toString();
+	}
+
+	/**
+	 * Quote string like JSONStringer does.
+	 */
+	private static void quote(String value, StringBuilder out)
+	{	out.append('"');
+		for (int i=0, iEnd=value.length(); i<iEnd; i++)
+		{	char c = value.charAt(i);
+			switch (c)
+			{	case '"':
+				case '\\':
+				case '/':
+					out.append('\\').append(c);
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				case '\b':
+					out.append("\\b");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\f':
+					out.append("\\f");
+					break;
+				default:
+					if (c <= 0x1F)
+					{	out.append(String.format(Locale.US, "\\u%04x", (int)c));
+					}
+					else
+					{	out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+}
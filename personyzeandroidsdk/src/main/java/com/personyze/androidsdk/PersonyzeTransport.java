@@ -0,0 +1,77 @@
+package com.personyze.androidsdk;
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.Map;
+
+/**
+ * HTTP client that the SDK uses to talk to Personyze server.
+ * By default it's {@link PersonyzeVolleyTransport}. You can pass your own to {@link PersonyzeTracker#setTransport(PersonyzeTransport)}, to reuse your application's HTTP stack.
+ * <p>
+ *     Failed requests must complete with {@link PersonyzeError}. Use {@link PersonyzeError#forHttpStatus(int, byte[])} for HTTP errors,
+ *     and errors of type {@link PersonyzeError.Type#TIMEOUT} and {@link PersonyzeError.Type#NO_CONNECTION} for network problems, so the SDK knows which requests to retry.
+ *     If the server compressed the response, it must be given uncompressed.
+ * </p>
+ */
+public interface PersonyzeTransport
+{	/**
+	 * Class of request. The SDK limits the number of concurrent requests of each class separately, so requests of one class don't wait for another.
+	 * Transports that support priorities should send INTERACTIVE requests before others.
+	 */
+	enum Lane
+	{	INTERACTIVE, // the user waits for it: getResult(), navigation, and the metadata they need
+		BACKGROUND, // statistics and notification polling
+		BULK // images
+	}
+
+	/**
+	 * @param url Full URL.
+	 * @param headers Headers to send.
+	 * @param lane Class of the request.
+	 * @param timeoutMillis Connect and read timeout. The SDK retries by itself, so the transport should try once.
+	 * @return Response body.
+	 */
+	Task<String> get(String url, Map<String, String> headers, Lane lane, int timeoutMillis);
+
+	/**
+	 * @param url Full URL.
+	 * @param headers Headers to send, including Content-Type, and Content-Encoding if the body is compressed.
+	 * @param body Request body.
+	 * @param lane Class of the request.
+	 * @param timeoutMillis Connect and read timeout. The SDK retries by itself, so the transport should try once.
+	 * @return Response body.
+	 */
+	Task<String> post(String url, Map<String, String> headers, byte[] body, Lane lane, int timeoutMillis);
+
+	/**
+	 * @param url Full URL.
+	 * @param headers Headers to send.
+	 * @param lane Class of the request.
+	 * @param timeoutMillis Connect and read timeout. The SDK retries by itself, so the transport should try once.
+	 * @return Response body.
+	 */
+	Task<String> delete(String url, Map<String, String> headers, Lane lane, int timeoutMillis);
+
+	/**
+	 * Download image. It's always in {@link Lane#BULK}. Besides the formats that Android can decode, it must support SVG. {@link PersonyzeHttp#decodeImage(byte[], String)} does this.
+	 * @param url Full URL.
+	 * @param timeoutMillis Connect and read timeout.
+	 */
+	Task<Bitmap> getBitmap(String url, int timeoutMillis);
+
+	/**
+	 * Open a connection to the host of this URL, and keep it alive, so next requests to this host don't wait for DNS, TCP and TLS handshake.
+	 * Response status doesn't matter, and the task fails only if the server couldn't be reached.
+	 * @param url Full URL.
+	 * @param headers Headers to send.
+	 * @param timeoutMillis Connect and read timeout.
+	 */
+	Task<Void> warmUp(String url, Map<String, String> headers, int timeoutMillis);
+
+	/**
+	 * Stop the threads that this transport started, and release its resources. It's not used after this.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,156 @@
+package com.personyze.androidsdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+/**
+ * Transport based on HttpURLConnection, without dependency on Volley.
+ * Responses are read to the end and closed without disconnecting, so HttpURLConnection keeps the connections alive, and reuses them for next requests.
+ * Compressed responses are asked for explicitly, and uncompressed here, so this works the same on Android and on other JVMs, that don't do this transparently.
+ * Requests are executed in order of arrival, regardless of lane.
+ */
+public class PersonyzeUrlConnectionTransport implements PersonyzeTransport
+{	private static final int DEFAULT_THREADS = 4;
+
+	private final Executor executor;
+	private final ExecutorService ownExecutor; // executor to shut down
+
+	private static class Response
+	{	byte[] data;
+		String contentType;
+	}
+
+	public PersonyzeUrlConnectionTransport()
+	{	ownExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS);
+		executor = ownExecutor;
+	}
+
+	/**
+	 * @param executor Where to run the blocking requests. {@link #shutdown()} will not stop it.
+	 */
+	public PersonyzeUrlConnectionTransport(Executor executor)
+	{	this.executor = executor;
+		ownExecutor = null;
+	}
+
+	@Override public void shutdown()
+	{	if (ownExecutor != null)
+		{	ownExecutor.shutdown();
+		}
+	}
+
+	@Override public Task<String> get(final String url, final Map<String, String> headers, Lane lane, final int timeoutMillis)
+	{	return Tasks.call(executor, () -> new String(execute("GET", url, headers, null, timeoutMillis).data, "utf-8"));
+	}
+
+	@Override public Task<String> post(final String url, final Map<String, String> headers, final byte[] body, Lane lane, final int timeoutMillis)
+	{	return Tasks.call(executor, () -> new String(execute("POST", url, headers, body, timeoutMillis).data, "utf-8"));
+	}
+
+	@Override public Task<String> delete(final String url, final Map<String, String> headers, Lane lane, final int timeoutMillis)
+	{	return Tasks.call(executor, () -> new String(execute("DELETE", url, headers, null, timeoutMillis).data, "utf-8"));
+	}
+
+	@Override public Task<Bitmap> getBitmap(final String url, final int timeoutMillis)
+	{	return Tasks.call
+		(	executor,
+			() ->
+			{	Response response = execute("GET", url, null, null, timeoutMillis);
+				return PersonyzeHttp.decodeImage(response.data, response.contentType);
+			}
+		);
+	}
+
+	@Override public Task<Void> warmUp(final String url, final Map<String, String> headers, final int timeoutMillis)
+	{	return Tasks.call
+		(	executor,
+			() ->
+			{	try
+				{	execute("HEAD", url, headers, null, timeoutMillis);
+				}
+				catch (PersonyzeError e)
+				{	if (e.getType()==PersonyzeError.Type.TIMEOUT || e.getType()==PersonyzeError.Type.NO_CONNECTION)
+					{	throw e;
+					}
+				}
+				return null;
+			}
+		);
+	}
+
+	private Response execute(String method, String url, Map<String, String> headers, byte[] body, int timeoutMillis) throws PersonyzeError
+	{	try
+		{	HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+			connection.setRequestMethod(method);
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			if (headers != null)
+			{	for (Map.Entry<String, String> header : headers.entrySet())
+				{	connection.setRequestProperty(header.getKey(), header.getValue());
+				}
+			}
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			if (body != null)
+			{	connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(body.length);
+				try (OutputStream out = connection.getOutputStream())
+				{	out.write(body);
+				}
+			}
+			int status = connection.getResponseCode();
+			Response response = new Response();
+			InputStream in = status>=400 ? connection.getErrorStream() : connection.getInputStream();
+			String encoding = connection.getContentEncoding();
+			response.data = readAll(in!=null && encoding!=null && encoding.equalsIgnoreCase("gzip") ? new GZIPInputStream(in) : in);
+			response.contentType = connection.getContentType();
+			if (status<200 || status>=300)
+			{	throw PersonyzeError.forHttpStatus(status, response.data);
+			}
+			return response;
+		}
+		catch (SocketTimeoutException e)
+		{	throw new PersonyzeError(e.getLocalizedMessage(), PersonyzeError.Type.TIMEOUT);
+		}
+		catch (UnknownHostException | ConnectException e)
+		{	throw new PersonyzeError(e.getLocalizedMessage(), PersonyzeError.Type.NO_CONNECTION);
+		}
+		catch (IOException e)
+		{	throw new PersonyzeError(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Read the stream to the end, and close it, so the connection can be reused.
+	 */
+	private static byte[] readAll(InputStream in) throws IOException
+	{	if (in == null)
+		{	return new byte[0];
+		}
+		try (InputStream s = in)
+		{	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			int n;
+			while ((n = s.read(chunk)) != -1)
+			{	buffer.write(chunk, 0, n);
+			}
+			return buffer.toByteArray();
+		}
+	}
+}
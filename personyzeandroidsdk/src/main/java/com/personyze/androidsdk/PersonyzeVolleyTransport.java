@@ -0,0 +1,307 @@
+package com.personyze.androidsdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.ImageRequest;
+import com.android.volley.toolbox.StringRequest;
+import com.android.volley.toolbox.Volley;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+/**
+ * Transport based on Volley. This is the default one.
+ * By default one queue is shared by the whole process, see {@link #getShared(Context)}.
+ */
+public class PersonyzeVolleyTransport implements PersonyzeTransport
+{	private static final String CONTENT_TYPE = "Content-Type";
+	private static final int SHARED_THREADS = 3; // PersonyzeHttp runs at most 1 BACKGROUND and 1 BULK request at a time, so one thread is always free for INTERACTIVE
+	private static final int SHARED_CACHE_BYTES = 1024*1024;
+	private static final String SHARED_CACHE_DIR = "Personyze Volley";
+
+	private static PersonyzeVolleyTransport shared;
+
+	private final RequestQueue requestQueue;
+	private final boolean ownsQueue;
+	private final HashSet<TaskCompletionSource<?>> outstanding = new HashSet<>(); // requests in the queue, that shutdown() fails
+	private boolean isShutdown;
+
+	public PersonyzeVolleyTransport(Context context)
+	{	requestQueue = Volley.newRequestQueue(context.getApplicationContext());
+		ownsQueue = true;
+	}
+
+	/**
+	 * Use your application's request queue. {@link #shutdown()} will not stop it.
+	 */
+	public PersonyzeVolleyTransport(RequestQueue requestQueue)
+	{	this.requestQueue = requestQueue;
+		ownsQueue = false;
+	}
+
+	PersonyzeVolleyTransport(RequestQueue requestQueue, boolean ownsQueue)
+	{	this.requestQueue = requestQueue;
+		this.ownsQueue = ownsQueue;
+	}
+
+	/**
+	 * The transport that is used by default. It's created on first use, bound to the application context, and runs SHARED_THREADS network threads.
+	 * After {@link #shutdown()} the next call creates a new one.
+	 */
+	static synchronized PersonyzeVolleyTransport getShared(Context context)
+	{	if (shared == null)
+		{	File cacheDir = new File(context.getApplicationContext().getCacheDir(), SHARED_CACHE_DIR);
+			RequestQueue requestQueue = new RequestQueue(new DiskBasedCache(cacheDir, SHARED_CACHE_BYTES), new BasicNetwork(new HurlStack()), SHARED_THREADS);
+			requestQueue.start();
+			shared = new PersonyzeVolleyTransport(requestQueue, true);
+		}
+		return shared;
+	}
+
+	/**
+	 * Cancel the requests of this transport, and fail their tasks, because the stopped queue would never complete them.
+	 * Requests made after this fail at once.
+	 */
+	@Override public void shutdown()
+	{	synchronized (PersonyzeVolleyTransport.class)
+		{	if (shared == this)
+			{	shared = null;
+			}
+		}
+		ArrayList<TaskCompletionSource<?>> cancelled;
+		synchronized (outstanding)
+		{	isShutdown = true;
+			cancelled = new ArrayList<>(outstanding);
+			outstanding.clear();
+		}
+		requestQueue.cancelAll(this);
+		if (ownsQueue)
+		{	requestQueue.stop();
+		}
+		for (TaskCompletionSource<?> asyncResult : cancelled)
+		{	asyncResult.trySetException(new PersonyzeError("Transport was shut down"));
+		}
+	}
+
+	/**
+	 * Add the request to the queue, or fail it if this transport was shut down.
+	 */
+	private <T> Task<T> enqueue(Request<?> request, TaskCompletionSource<T> asyncResult)
+	{	synchronized (outstanding)
+		{	if (isShutdown)
+			{	asyncResult.setException(new PersonyzeError("Transport was shut down"));
+				return asyncResult.getTask();
+			}
+			outstanding.add(asyncResult);
+		}
+		request.setTag(this);
+		requestQueue.add(request);
+		return asyncResult.getTask();
+	}
+
+	/**
+	 * Complete the task of request, unless shutdown() failed it already.
+	 */
+	private <T> void succeed(TaskCompletionSource<T> asyncResult, T result)
+	{	synchronized (outstanding)
+		{	outstanding.remove(asyncResult);
+		}
+		asyncResult.trySetResult(result);
+	}
+
+	private void fail(TaskCompletionSource<?> asyncResult, Exception e)
+	{	synchronized (outstanding)
+		{	outstanding.remove(asyncResult);
+		}
+		asyncResult.trySetException(e);
+	}
+
+	@Override public Task<String> get(String url, Map<String, String> headers, Lane lane, int timeoutMillis)
+	{	return request(Request.Method.GET, url, headers, null, lane, timeoutMillis);
+	}
+
+	@Override public Task<String> post(String url, Map<String, String> headers, byte[] body, Lane lane, int timeoutMillis)
+	{	return request(Request.Method.POST, url, headers, body, lane, timeoutMillis);
+	}
+
+	@Override public Task<String> delete(String url, Map<String, String> headers, Lane lane, int timeoutMillis)
+	{	return request(Request.Method.DELETE, url, headers, null, lane, timeoutMillis);
+	}
+
+	/**
+	 * One attempt with this timeout, because PersonyzeHttp does the retries.
+	 */
+	private static DefaultRetryPolicy retryPolicy(int timeoutMillis)
+	{	return new DefaultRetryPolicy(timeoutMillis, 0, 1);
+	}
+
+	private static Request.Priority priority(Lane lane)
+	{	switch (lane)
+		{	case INTERACTIVE:
+				return Request.Priority.HIGH;
+			case BACKGROUND:
+				return Request.Priority.NORMAL;
+			default:
+				return Request.Priority.LOW;
+		}
+	}
+
+	private Task<String> request(int method, String url, Map<String, String> headers, final byte[] body, Lane lane, int timeoutMillis)
+	{	final Request.Priority priority = priority(lane);
+		final TaskCompletionSource<String> asyncResult = new TaskCompletionSource<>();
+		final HashMap<String, String> finalHeaders = new HashMap<>(headers);
+		final String contentType = finalHeaders.remove(CONTENT_TYPE); // Volley sends it from getBodyContentType()
+		finalHeaders.put("Accept-Encoding", "gzip"); // so HttpURLConnection doesn't uncompress, and parseNetworkResponse() does
+		return enqueue
+		(	new StringRequest
+			(	method,
+				url,
+				result -> succeed(asyncResult, result),
+				error -> fail(asyncResult, toPersonyzeError(error))
+			)
+			{	@Override public Priority getPriority()
+				{	return priority;
+				}
+
+				@Override public String getBodyContentType()
+				{	return contentType!=null ? contentType : super.getBodyContentType();
+				}
+
+				@Override public byte[] getBody()
+				{	return body;
+				}
+
+				@Override public Map<String, String> getHeaders()
+				{	return finalHeaders;
+				}
+
+				@Override protected Response<String> parseNetworkResponse(NetworkResponse response)
+				{	try
+					{	return Response.success(new String(responseData(response), HttpHeaderParser.parseCharset(response.headers)), HttpHeaderParser.parseCacheHeaders(response));
+					}
+					catch (IOException e)
+					{	return Response.error(new ParseError(e));
+					}
+				}
+			}.setRetryPolicy(retryPolicy(timeoutMillis)),
+			asyncResult
+		);
+	}
+
+	@Override public Task<Bitmap> getBitmap(String url, int timeoutMillis)
+	{	final TaskCompletionSource<Bitmap> asyncResult = new TaskCompletionSource<>();
+		return enqueue
+		(	new ImageRequest
+			(	url,
+				result -> succeed(asyncResult, result),
+				0,
+				0,
+				ImageView.ScaleType.CENTER,
+				null,
+				error -> fail(asyncResult, toPersonyzeError(error))
+			)
+			{	@Override public Priority getPriority()
+				{	return priority(Lane.BULK);
+				}
+
+				@Override protected Response<Bitmap> parseNetworkResponse(NetworkResponse response)
+				{	if (response.headers != null)
+					{	String type = response.headers.get(CONTENT_TYPE);
+						if (type!=null && type.equals("image/svg+xml"))
+						{	try
+							{	return Response.success(PersonyzeHttp.decodeImage(response.data, type), HttpHeaderParser.parseCacheHeaders(response));
+							}
+							catch (PersonyzeError error)
+							{	return Response.error(new ParseError(error));
+							}
+						}
+					}
+					return super.parseNetworkResponse(response);
+				}
+			}.setRetryPolicy(retryPolicy(timeoutMillis)),
+			asyncResult
+		);
+	}
+
+	@Override public Task<Void> warmUp(String url, final Map<String, String> headers, int timeoutMillis)
+	{	final TaskCompletionSource<Void> asyncResult = new TaskCompletionSource<>();
+		return enqueue
+		(	new StringRequest
+			(	Request.Method.HEAD,
+				url,
+				response -> succeed(asyncResult, null),
+				error ->
+				{	if (error.networkResponse != null)
+					{	succeed(asyncResult, null); // the server answered, so the connection is open
+					}
+					else
+					{	fail(asyncResult, toPersonyzeError(error));
+					}
+				}
+			)
+			{	@Override public Priority getPriority()
+				{	return Priority.HIGH;
+				}
+
+				@Override public Map<String, String> getHeaders()
+				{	return headers;
+				}
+			}.setShouldCache(false).setRetryPolicy(retryPolicy(timeoutMillis)),
+			asyncResult
+		);
+	}
+
+	/**
+	 * Response body, uncompressed if the server compressed it.
+	 */
+	private static byte[] responseData(NetworkResponse response) throws IOException
+	{	String encoding = response.headers==null ? null : response.headers.get("Content-Encoding");
+		return encoding!=null && encoding.equalsIgnoreCase("gzip") ? PersonyzeHttp.gunzip(response.data) : response.data;
+	}
+
+	/**
+	 * Convert Volley error to the error that is reported to the application.
+	 */
+	private static PersonyzeError toPersonyzeError(VolleyError error)
+	{	if (error.networkResponse != null)
+		{	byte[] body = null;
+			try
+			{	body = responseData(error.networkResponse);
+			}
+			catch (IOException e)
+			{	// not interesting
+			}
+			return PersonyzeError.forHttpStatus(error.networkResponse.statusCode, body);
+		}
+		String message = error.getLocalizedMessage();
+		if (error instanceof TimeoutError)
+		{	return new PersonyzeError(message!=null ? message : "Request timed out", PersonyzeError.Type.TIMEOUT);
+		}
+		if (error instanceof NoConnectionError)
+		{	return new PersonyzeError(message!=null ? message : "No connection", PersonyzeError.Type.NO_CONNECTION);
+		}
+		return new PersonyzeError(message!=null ? message : "HTTP request failed");
+	}
+}
@@ -0,0 +1,65 @@
+package com.personyze.androidsdk;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersonyzeActionDataBenchmark
+{	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp()
+	{	PersonyzeBenchmark.assumeEnabled();
+	}
+
+	/**
+	 * Write, and read one key, with the new format and with ObjectOutputStream.
+	 */
+	@Test
+	public void againstObjectStream() throws Exception
+	{	File file = folder.newFile();
+		File oldFile = folder.newFile();
+		HashMap<String, String> data = PersonyzeActionDataTest.sampleData(PersonyzeActionDataTest.N_ENTRIES);
+		long writeNanos = Long.MAX_VALUE;
+		long oldWriteNanos = Long.MAX_VALUE;
+		long getNanos = Long.MAX_VALUE;
+		long oldGetNanos = Long.MAX_VALUE;
+		for (int round=0; round<20; round++)
+		{	long startTime = System.nanoTime();
+			PersonyzeActionData.write(file, data);
+			writeNanos = Math.min(writeNanos, System.nanoTime()-startTime);
+
+			startTime = System.nanoTime();
+			try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(oldFile)))
+			{	out.writeObject(data);
+			}
+			oldWriteNanos = Math.min(oldWriteNanos, System.nanoTime()-startTime);
+
+			startTime = System.nanoTime();
+			String value = PersonyzeActionData.get(PersonyzeActionData.read(file), "key 100");
+			getNanos = Math.min(getNanos, System.nanoTime()-startTime);
+			assertEquals(data.get("key 100"), value);
+
+			startTime = System.nanoTime();
+			try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(oldFile)))
+			{	@SuppressWarnings("unchecked") HashMap<String, String> oldData = (HashMap<String, String>)in.readObject();
+				value = oldData.get("key 100");
+			}
+			oldGetNanos = Math.min(oldGetNanos, System.nanoTime()-startTime);
+			assertEquals(data.get("key 100"), value);
+		}
+		System.out.println(String.format(Locale.US, "%d entries: write %d us (ObjectOutputStream %d us), read and get one key %d us (ObjectInputStream %d us), file %d bytes (%d bytes)", data.size(), writeNanos/1000, oldWriteNanos/1000, getNanos/1000, oldGetNanos/1000, file.length(), oldFile.length()));
+	}
+}
@@ -0,0 +1,137 @@
+package com.personyze.androidsdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PersonyzeActionDataTest
+{	static final int N_ENTRIES = 200;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static HashMap<String, String> sampleData(int nEntries)
+	{	HashMap<String, String> data = new HashMap<>();
+		for (int i=0; i<nEntries; i++)
+		{	data.put("key "+i, "Value "+i+", with non-ASCII \u00e9\u4e2d \u2014 and some more text to make it longer");
+		}
+		data.put("null", null);
+		data.put("", "empty key");
+		return data;
+	}
+
+	@Test
+	public void roundTrip() throws Exception
+	{	File file = folder.newFile();
+		HashMap<String, String> data = sampleData(N_ENTRIES);
+		PersonyzeActionData.write(file, data);
+		ByteBuffer entries = PersonyzeActionData.read(file);
+		assertEquals(data, PersonyzeActionData.decode(entries));
+		for (String key : data.keySet())
+		{	assertEquals(data.get(key), PersonyzeActionData.get(entries, key));
+		}
+		assertNull(PersonyzeActionData.get(entries, "missing"));
+		assertNull(PersonyzeActionData.get(entries, "key 1000"));
+	}
+
+	@Test
+	public void emptyMap() throws Exception
+	{	File file = folder.newFile();
+		PersonyzeActionData.write(file, new HashMap<>());
+		ByteBuffer entries = PersonyzeActionData.read(file);
+		assertTrue(PersonyzeActionData.decode(entries).isEmpty());
+		assertNull(PersonyzeActionData.get(entries, "key"));
+	}
+
+	@Test
+	public void missingFile() throws Exception
+	{	assertNull(PersonyzeActionData.read(new File(folder.getRoot(), "missing")));
+	}
+
+	@Test
+	public void corruptLengthDoesntAllocateIt() throws Exception
+	{	File file = folder.newFile();
+		HashMap<String, String> data = new HashMap<>();
+		data.put("a", "1");
+		data.put("b", "2");
+		PersonyzeActionData.write(file, data);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{	raf.seek(12); // length of first key
+			raf.writeInt(Integer.MAX_VALUE - 8);
+		}
+		ByteBuffer entries = PersonyzeActionData.read(file);
+		assertNull(PersonyzeActionData.get(entries, "a"));
+		assertNull(PersonyzeActionData.get(entries, "b"));
+		assertTrue(PersonyzeActionData.decode(entries).isEmpty());
+
+		PersonyzeActionData.write(file, data);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{	raf.seek(12 + 4 + 1); // length of first value
+			raf.writeInt(Integer.MAX_VALUE - 8);
+		}
+		entries = PersonyzeActionData.read(file);
+		assertNull(PersonyzeActionData.get(entries, "a"));
+		assertNull(PersonyzeActionData.get(entries, "b"));
+		assertTrue(PersonyzeActionData.decode(entries).isEmpty());
+	}
+
+	@Test
+	public void truncatedFileGivesWhatWasRead() throws Exception
+	{	File file = folder.newFile();
+		HashMap<String, String> data = sampleData(N_ENTRIES);
+		PersonyzeActionData.write(file, data);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{	raf.setLength(raf.length() / 2);
+		}
+		HashMap<String, String> decoded = PersonyzeActionData.decode(PersonyzeActionData.read(file));
+		assertTrue(decoded.size() > 0);
+		assertTrue(decoded.size() < data.size());
+		for (String key : decoded.keySet())
+		{	assertEquals(data.get(key), decoded.get(key));
+		}
+	}
+
+	@Test
+	public void oldFormatIsConverted() throws Exception
+	{	File file = folder.newFile();
+		HashMap<String, String> data = sampleData(N_ENTRIES);
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file)))
+		{	out.writeObject(data);
+		}
+		assertEquals(data, PersonyzeActionData.decode(PersonyzeActionData.read(file)));
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{	assertEquals(0x505a4144, in.readInt()); // rewritten in the current format
+		}
+		assertEquals(data, PersonyzeActionData.decode(PersonyzeActionData.read(file)));
+	}
+
+	@Test
+	public void unknownFormatIsRejected() throws Exception
+	{	File file = folder.newFile();
+		try (FileOutputStream out = new FileOutputStream(file))
+		{	out.write("Not action data".getBytes("utf-8"));
+		}
+		try
+		{	PersonyzeActionData.read(file);
+			fail("Unknown format was accepted");
+		}
+		catch (IOException e)
+		{	// expected
+		}
+	}
+}
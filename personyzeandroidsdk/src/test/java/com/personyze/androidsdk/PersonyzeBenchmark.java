@@ -0,0 +1,18 @@
+package com.personyze.androidsdk;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks print timings to compare with the code they replaced, and don't assert them, as they depend on the machine.
+ * They're skipped by the regular test run. Run them with: ./gradlew test -Pbenchmark --tests '*Benchmark'
+ */
+class PersonyzeBenchmark
+{	static final String PROPERTY = "personyze.benchmark";
+
+	/**
+	 * Call in @Before of a benchmark class, to skip it unless benchmarks were asked for.
+	 */
+	static void assumeEnabled()
+	{	assumeTrue("Benchmarks run only with -Pbenchmark", Boolean.getBoolean(PROPERTY));
+	}
+}
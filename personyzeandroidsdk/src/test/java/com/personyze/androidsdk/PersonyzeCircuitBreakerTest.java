@@ -0,0 +1,143 @@
+package com.personyze.androidsdk;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.Duration;
+
+import com.personyze.androidsdk.PersonyzeCircuitBreaker.Permit;
+import com.personyze.androidsdk.PersonyzeCircuitBreaker.State;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeCircuitBreakerTest
+{	private static final long OPEN_MILLIS = 1000;
+	private static final PersonyzeError UNAVAILABLE = PersonyzeError.forHttpStatus(503, null);
+
+	private PersonyzeCircuitBreaker breaker;
+
+	@Before
+	public void setUp()
+	{	breaker = new PersonyzeCircuitBreaker();
+		breaker.configure(2, 0.5, OPEN_MILLIS);
+	}
+
+	private static void sleep(long millis)
+	{	shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+	}
+
+	private void open()
+	{	breaker.record(breaker.allowRequest(), UNAVAILABLE);
+		breaker.record(breaker.allowRequest(), UNAVAILABLE);
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void opensOnFailuresAndProbesLater()
+	{	breaker.record(breaker.allowRequest(), null);
+		breaker.record(breaker.allowRequest(), UNAVAILABLE);
+		assertEquals(State.OPEN, breaker.getState());
+		assertNull(breaker.allowRequest());
+		sleep(OPEN_MILLIS);
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		Permit probe = breaker.allowRequest();
+		assertTrue(probe.isProbe);
+		assertNull(breaker.allowRequest()); // one probe at a time
+		breaker.record(probe, null);
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void failedProbeOpensForLonger()
+	{	open();
+		sleep(OPEN_MILLIS);
+		breaker.record(breaker.allowRequest(), UNAVAILABLE);
+		assertEquals(State.OPEN, breaker.getState());
+		sleep(OPEN_MILLIS);
+		assertEquals(State.OPEN, breaker.getState());
+		sleep(OPEN_MILLIS);
+		assertEquals(State.HALF_OPEN, breaker.getState());
+	}
+
+	@Test
+	public void requestSentBeforeOpeningDoesntDecideProbe()
+	{	Permit old = breaker.allowRequest();
+		open();
+		sleep(OPEN_MILLIS);
+		Permit probe = breaker.allowRequest();
+		assertNotNull(probe);
+		breaker.record(old, null); // completed first, but it's not the probe
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		breaker.record(probe, UNAVAILABLE);
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void requestSentBeforeClosingIsNotCounted()
+	{	Permit old = breaker.allowRequest();
+		open();
+		sleep(OPEN_MILLIS);
+		breaker.record(breaker.allowRequest(), null);
+		assertEquals(State.CLOSED, breaker.getState());
+		breaker.record(old, UNAVAILABLE);
+		breaker.record(breaker.allowRequest(), UNAVAILABLE);
+		assertEquals(State.CLOSED, breaker.getState()); // only one failure in the new window
+	}
+
+	@Test
+	public void lostProbeCountsAsFailure()
+	{	open();
+		sleep(OPEN_MILLIS);
+		Permit lost = breaker.allowRequest();
+		assertTrue(lost.isProbe);
+		sleep(OPEN_MILLIS);
+		assertEquals(State.OPEN, breaker.getState()); // for twice as long
+		sleep(OPEN_MILLIS);
+		assertEquals(State.OPEN, breaker.getState());
+		breaker.record(lost, null); // too late to decide
+		assertEquals(State.OPEN, breaker.getState());
+		sleep(OPEN_MILLIS);
+		Permit probe = breaker.allowRequest();
+		assertTrue(probe.isProbe);
+		breaker.record(probe, null);
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void invalidConfigurationIsRejected()
+	{	assertInvalid(-1, 0.5, OPEN_MILLIS);
+		assertInvalid(2, 0, OPEN_MILLIS);
+		assertInvalid(2, 1.5, OPEN_MILLIS);
+		assertInvalid(2, Double.NaN, OPEN_MILLIS);
+		assertInvalid(2, 0.5, 0);
+		assertInvalid(2, 0.5, -1);
+		breaker.configure(0, 1, 1); // disabled
+	}
+
+	private void assertInvalid(int windowSize, double errorRate, long openMillis)
+	{	try
+		{	breaker.configure(windowSize, errorRate, openMillis);
+			fail("Accepted "+windowSize+", "+errorRate+", "+openMillis);
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+	}
+
+	@Test
+	public void otherErrorsAreNotFailures()
+	{	breaker.record(breaker.allowRequest(), PersonyzeError.forHttpStatus(401, null));
+		breaker.record(breaker.allowRequest(), PersonyzeError.forHttpStatus(401, null));
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+}
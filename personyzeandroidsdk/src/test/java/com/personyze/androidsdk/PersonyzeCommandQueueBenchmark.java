@@ -0,0 +1,38 @@
+package com.personyze.androidsdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersonyzeCommandQueueBenchmark
+{	private static final int N_PRODUCERS = 8;
+	private static final int N_PER_PRODUCER = 200_000;
+
+	@Before
+	public void setUp()
+	{	PersonyzeBenchmark.assumeEnabled();
+	}
+
+	/**
+	 * Compares producers offering to the queue with the synchronized ArrayList that commands were added to before.
+	 */
+	@Test
+	public void againstSynchronizedList() throws Exception
+	{	for (int nProducers : new int[] {1, 4, N_PRODUCERS})
+		{	long queueNanos = Long.MAX_VALUE;
+			long listNanos = Long.MAX_VALUE;
+			for (int round=0; round<5; round++)
+			{	final PersonyzeCommandQueue queue = new PersonyzeCommandQueue();
+				queueNanos = Math.min(queueNanos, PersonyzeCommandQueueTest.produce(nProducers, N_PER_PRODUCER, queue::offer));
+				final ArrayList<PersonyzeCommand> list = new ArrayList<>();
+				listNanos = Math.min(listNanos, PersonyzeCommandQueueTest.produce(nProducers, N_PER_PRODUCER, command -> {synchronized (list) {list.add(command);}}));
+				assertEquals(nProducers*N_PER_PRODUCER, list.size());
+			}
+			System.out.println(String.format(Locale.US, "%d producers: queue %.1f ns/command, synchronized ArrayList %.1f ns/command", nProducers, (double)queueNanos/(nProducers*N_PER_PRODUCER), (double)listNanos/(nProducers*N_PER_PRODUCER)));
+		}
+	}
+}
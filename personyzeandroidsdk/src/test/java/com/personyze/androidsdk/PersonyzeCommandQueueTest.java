@@ -0,0 +1,83 @@
+package com.personyze.androidsdk;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PersonyzeCommandQueueTest
+{	private static final int N_PRODUCERS = 8;
+	private static final int N_PER_PRODUCER = 200_000;
+
+	interface Sink
+	{	void add(PersonyzeCommand command);
+	}
+
+	@Test
+	public void consumerGetsAllCommandsInOrderOfEachProducer() throws Exception
+	{	final PersonyzeCommandQueue queue = new PersonyzeCommandQueue();
+		final AtomicBoolean producing = new AtomicBoolean(true);
+		final int[] nextSeq = new int[N_PRODUCERS];
+		final int[] nTaken = new int[1];
+		Thread consumer = new Thread
+		(	() ->
+			{	while (true)
+				{	boolean wasProducing = producing.get();
+					PersonyzeCommand command;
+					while ((command = queue.poll()) != null)
+					{	int producer = Integer.parseInt(command.arg1);
+						assertEquals(nextSeq[producer]++, command.id);
+						nTaken[0]++;
+					}
+					if (!wasProducing)
+					{	break;
+					}
+				}
+			}
+		);
+		consumer.start();
+		produce(N_PRODUCERS, N_PER_PRODUCER, queue::offer);
+		producing.set(false);
+		consumer.join();
+		assertEquals(N_PRODUCERS*N_PER_PRODUCER, nTaken[0]);
+		for (int seq : nextSeq)
+		{	assertEquals(N_PER_PRODUCER, seq);
+		}
+		assertTrue(!queue.hasPending());
+	}
+
+	/**
+	 * Start the producers at once, and wait for them.
+	 * @return Time it took, in nanoseconds.
+	 */
+	static long produce(int nProducers, final int nPerProducer, final Sink sink) throws InterruptedException
+	{	final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[nProducers];
+		for (int p=0; p<nProducers; p++)
+		{	final String producer = String.valueOf(p);
+			threads[p] = new Thread
+			(	() ->
+				{	try
+					{	start.await();
+					}
+					catch (InterruptedException e)
+					{	return;
+					}
+					for (int i=0; i<nPerProducer; i++)
+					{	sink.add(new PersonyzeCommand(PersonyzeCommand.Op.ARTICLE_VIEWED, i, producer, null));
+					}
+				}
+			);
+			threads[p].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+		{	thread.join();
+		}
+		return System.nanoTime() - startTime;
+	}
+}
@@ -0,0 +1,52 @@
+package com.personyze.androidsdk;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PersonyzeCommandTest
+{	private static PersonyzeCommand navigate(String doc)
+	{	return new PersonyzeCommand(PersonyzeCommand.Op.NAVIGATE, 0, doc, null);
+	}
+
+	private static PersonyzeCommand status(int actionId, String status, String arg)
+	{	return new PersonyzeCommand(PersonyzeCommand.Op.ACTION_STATUS, actionId, status, arg);
+	}
+
+	@Test
+	public void repeatedStatusIsSentOnce()
+	{	List<PersonyzeCommand> commands = Arrays.asList
+		(	navigate("Home"),
+			status(1, "target", ""),
+			status(1, "target", ""),
+			status(2, "target", "")
+		);
+		assertEquals(Arrays.asList(navigate("Home"), status(1, "target", ""), status(2, "target", "")), PersonyzeCommand.compact(commands));
+	}
+
+	@Test
+	public void differentStatusesOfOneActionAreAllSent()
+	{	List<PersonyzeCommand> commands = Arrays.asList
+		(	navigate("Home"),
+			status(1, "target", ""),
+			status(1, "close", "3"),
+			status(1, "product", "10"),
+			status(1, "product", "11")
+		);
+		assertEquals(commands, PersonyzeCommand.compact(commands));
+	}
+
+	@Test
+	public void statusIsSentAgainAfterNavigate()
+	{	List<PersonyzeCommand> commands = Arrays.asList
+		(	navigate("Home"),
+			status(1, "target", ""),
+			navigate("Cart"),
+			status(1, "target", "")
+		);
+		assertEquals(commands, PersonyzeCommand.compact(commands));
+	}
+}
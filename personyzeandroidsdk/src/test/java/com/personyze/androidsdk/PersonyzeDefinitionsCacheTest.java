@@ -0,0 +1,74 @@
+package com.personyze.androidsdk;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PersonyzeDefinitionsCacheTest
+{	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private PersonyzeDefinitionsCache cache;
+
+	@Before
+	public void setUp()
+	{	cache = new PersonyzeDefinitionsCache(new File(folder.getRoot(), "Definitions"));
+		cache.open();
+	}
+
+	private static PersonyzeDefinitionsCache.Out record(String value)
+	{	PersonyzeDefinitionsCache.Out out = new PersonyzeDefinitionsCache.Out();
+		out.writeString(value);
+		return out;
+	}
+
+	@Test
+	public void hitsAndMissesAreCounted() throws Exception
+	{	cache.put(PersonyzeDefinitionsCache.ACTION, 1, record("one"));
+		assertEquals("one", PersonyzeDefinitionsCache.readString(cache.get(PersonyzeDefinitionsCache.ACTION, 1)));
+		cache.commit();
+		assertNotNull(cache.get(PersonyzeDefinitionsCache.ACTION, 1)); // from file
+		assertNull(cache.get(PersonyzeDefinitionsCache.ACTION, 2));
+		assertNull(cache.get(PersonyzeDefinitionsCache.CONDITION, 1));
+		assertNotNull(cache.peek(PersonyzeDefinitionsCache.ACTION, 1)); // doesn't count
+		assertEquals(2, cache.hitCount());
+		assertEquals(2, cache.missCount());
+		assertEquals(0, cache.evictionCount());
+	}
+
+	@Test
+	public void evictionsAreCounted() throws Exception
+	{	for (int id=1; id<=1010; id++)
+		{	cache.put(PersonyzeDefinitionsCache.PLACEHOLDER, id, record("placeholder "+id));
+		}
+		cache.commit();
+		assertEquals(10, cache.evictionCount());
+		assertEquals(1000, cache.ids(PersonyzeDefinitionsCache.PLACEHOLDER).size());
+	}
+
+	@Test
+	public void readStringRejectsCorruptLength()
+	{	ByteBuffer in = ByteBuffer.allocate(16);
+		in.putInt(-1);
+		in.putInt(Integer.MAX_VALUE - 8);
+		in.flip();
+		assertNull(PersonyzeDefinitionsCache.readString(in));
+		try
+		{	PersonyzeDefinitionsCache.readString(in);
+			fail("Corrupt length was accepted");
+		}
+		catch (BufferUnderflowException e)
+		{	// expected
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.personyze.androidsdk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+
+/**
+ * In-process transport for tests. It doesn't use network, but answers with the responses that were set, and records all the requests.
+ * Paths are relative to Personyze REST gateway, like "tracker-v1", or full URLs.
+ */
+class PersonyzeFakeTransport implements PersonyzeTransport
+{	static class Request
+	{	final String method;
+		final String url;
+		final Map<String, String> headers;
+		final byte[] body;
+		final Lane lane;
+		final int timeoutMillis;
+
+		Request(String method, String url, Map<String, String> headers, byte[] body, Lane lane, int timeoutMillis)
+		{	this.method = method;
+			this.lane = lane;
+			this.timeoutMillis = timeoutMillis;
+			this.url = url;
+			this.headers = headers==null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(headers));
+			this.body = body;
+		}
+
+		/**
+		 * Request body as string, uncompressed if it was compressed.
+		 */
+		String getBodyString() throws IOException
+		{	if (body == null)
+			{	return null;
+			}
+			String encoding = headers.get("Content-Encoding");
+			return new String(encoding!=null && encoding.equalsIgnoreCase("gzip") ? PersonyzeHttp.gunzip(body) : body, "utf-8");
+		}
+	}
+
+	private final HashMap<String, Object> responses = new HashMap<>(); // String, Bitmap or PersonyzeError
+	private final ArrayList<Request> requests = new ArrayList<>();
+	private ArrayList<Runnable> held; // answers to requests made after hold(), or null if not held
+
+	private static String key(String method, String path)
+	{	return method+" "+(path.contains("://") ? path : PersonyzeTracker.GATEWAY_URL+path);
+	}
+
+	/**
+	 * Answer requests to this path with this response body. It's returned each time, till it's changed.
+	 * @param method "GET", "POST" or "DELETE".
+	 */
+	synchronized void respond(String method, String path, String response)
+	{	responses.put(key(method, path), response);
+	}
+
+	/**
+	 * Fail requests to this path with this error.
+	 */
+	synchronized void fail(String method, String path, PersonyzeError error)
+	{	responses.put(key(method, path), error);
+	}
+
+	synchronized void respondBitmap(String url, Bitmap bitmap)
+	{	responses.put(key("GET", url), bitmap);
+	}
+
+	/**
+	 * All the requests that were made till now, in order.
+	 */
+	synchronized List<Request> getRequests()
+	{	return new ArrayList<>(requests);
+	}
+
+	synchronized void clearRequests()
+	{	requests.clear();
+	}
+
+	/**
+	 * Record requests, but don't answer them till {@link #release()}, so they stay in progress.
+	 */
+	synchronized void hold()
+	{	if (held == null)
+		{	held = new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Answer the held requests, and answer next ones at once.
+	 */
+	void release()
+	{	ArrayList<Runnable> answers;
+		synchronized (this)
+		{	answers = held;
+			held = null;
+		}
+		if (answers != null)
+		{	for (Runnable answer : answers)
+			{	answer.run();
+			}
+		}
+	}
+
+	@Override public Task<String> get(String url, Map<String, String> headers, Lane lane, int timeoutMillis)
+	{	return request("GET", url, headers, null, lane, timeoutMillis, String.class);
+	}
+
+	@Override public Task<String> post(String url, Map<String, String> headers, byte[] body, Lane lane, int timeoutMillis)
+	{	return request("POST", url, headers, body, lane, timeoutMillis, String.class);
+	}
+
+	@Override public Task<String> delete(String url, Map<String, String> headers, Lane lane, int timeoutMillis)
+	{	return request("DELETE", url, headers, null, lane, timeoutMillis, String.class);
+	}
+
+	@Override public Task<Bitmap> getBitmap(String url, int timeoutMillis)
+	{	return request("GET", url, null, null, Lane.BULK, timeoutMillis, Bitmap.class);
+	}
+
+	@Override public synchronized Task<Void> warmUp(String url, Map<String, String> headers, int timeoutMillis)
+	{	requests.add(new Request("HEAD", url, headers, null, Lane.INTERACTIVE, timeoutMillis));
+		return Tasks.forResult(null);
+	}
+
+	@Override public void shutdown()
+	{
+	}
+
+	private synchronized <T> Task<T> request(String method, String url, Map<String, String> headers, byte[] body, Lane lane, int timeoutMillis, Class<T> type)
+	{	requests.add(new Request(method, url, headers, body, lane, timeoutMillis));
+		final TaskCompletionSource<T> asyncResult = new TaskCompletionSource<>();
+		final Object response = responses.get(key(method, url));
+		Runnable answer = () ->
+		{	if (response instanceof PersonyzeError)
+			{	asyncResult.setException((PersonyzeError)response);
+			}
+			else if (type.isInstance(response))
+			{	asyncResult.setResult(type.cast(response));
+			}
+			else
+			{	asyncResult.setException(PersonyzeError.forHttpStatus(404, null));
+			}
+		};
+		if (held != null)
+		{	held.add(answer);
+		}
+		else
+		{	answer.run();
+		}
+		return asyncResult.getTask();
+	}
+}
@@ -0,0 +1,64 @@
+package com.personyze.androidsdk;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeFlushSchedulerTest
+{	private static final long MAX_DELAY_MILLIS = 1000;
+
+	private int nFlushes;
+	private PersonyzeFlushScheduler scheduler;
+
+	@Before
+	public void setUp()
+	{	scheduler = new PersonyzeFlushScheduler(() -> nFlushes++);
+		scheduler.configure(10, 0, MAX_DELAY_MILLIS);
+	}
+
+	private static void idleFor(long millis)
+	{	shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+	}
+
+	@Test
+	public void restoredCommandsAreFlushed()
+	{	scheduler.commandsRestored(3, 300);
+		idleFor(MAX_DELAY_MILLIS);
+		assertEquals(1, nFlushes);
+	}
+
+	@Test
+	public void manyRestoredCommandsAreFlushedAtOnce()
+	{	scheduler.commandsRestored(10, 1000);
+		idleFor(0);
+		assertEquals(1, nFlushes);
+	}
+
+	@Test
+	public void takingUncountedCommandsDoesntBreakCounting()
+	{	scheduler.commandAdded(100);
+		scheduler.commandsTaken(5); // also took commands that the scheduler didn't know about
+		idleFor(MAX_DELAY_MILLIS);
+		assertEquals(0, nFlushes);
+
+		scheduler.commandAdded(100); // first command again, so the timer starts
+		idleFor(MAX_DELAY_MILLIS);
+		assertEquals(1, nFlushes);
+
+		scheduler.commandsTaken(1);
+		for (int i=0; i<10; i++)
+		{	scheduler.commandAdded(100);
+		}
+		idleFor(0);
+		assertEquals(2, nFlushes);
+	}
+}
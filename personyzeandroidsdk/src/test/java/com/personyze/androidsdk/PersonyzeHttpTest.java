@@ -0,0 +1,185 @@
+package com.personyze.androidsdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.android.gms.tasks.Task;
+
+import com.personyze.androidsdk.PersonyzeRequestPolicy.Endpoint;
+import com.personyze.androidsdk.PersonyzeTransport.Lane;
+
+import static com.personyze.androidsdk.PersonyzeTestTasks.await;
+import static com.personyze.androidsdk.PersonyzeTestTasks.awaitFailure;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeHttpTest
+{	private static final String API_KEY = "0123456789012345678901234567890123456789";
+	private static final String REQUEST = "{\"user_id\":0,\"commands\":[[\"Navigate\",\"Home\"]]}";
+	private static final String RESPONSE = "{\"session_id\":null}";
+
+	private PersonyzeFakeTransport transport;
+	private PersonyzeHttp http;
+
+	@Before
+	public void setUp()
+	{	transport = new PersonyzeFakeTransport();
+		http = new PersonyzeHttp();
+		http.setTransport(transport);
+		http.apiKey = API_KEY;
+	}
+
+	private PersonyzeError postFailure() throws Exception
+	{	return (PersonyzeError)awaitFailure(http.post("tracker-v1", REQUEST.getBytes("utf-8"), Lane.INTERACTIVE));
+	}
+
+	@Test
+	public void postIsSentWithHeaders() throws Exception
+	{	transport.respond("POST", "tracker-v1", RESPONSE);
+		assertEquals(RESPONSE, await(http.post("tracker-v1", REQUEST.getBytes("utf-8"), Lane.BACKGROUND)));
+		List<PersonyzeFakeTransport.Request> requests = transport.getRequests();
+		assertEquals(1, requests.size());
+		PersonyzeFakeTransport.Request request = requests.get(0);
+		assertEquals(PersonyzeTracker.GATEWAY_URL+"tracker-v1", request.url);
+		assertEquals(Lane.BACKGROUND, request.lane);
+		assertEquals(PersonyzeTracker.USER_AGENT, request.headers.get("User-Agent"));
+		assertEquals("application/json; charset=utf-8", request.headers.get("Content-Type"));
+		assertNull(request.headers.get("Content-Encoding"));
+		assertEquals(REQUEST, request.getBodyString());
+	}
+
+	@Test
+	public void longPostIsCompressed() throws Exception
+	{	transport.respond("POST", "tracker-v1", RESPONSE);
+		http.gzipMinBytes = 10;
+		await(http.post("tracker-v1", REQUEST.getBytes("utf-8"), Lane.INTERACTIVE));
+		PersonyzeFakeTransport.Request request = transport.getRequests().get(0);
+		assertEquals("gzip", request.headers.get("Content-Encoding"));
+		assertEquals(REQUEST, request.getBodyString());
+	}
+
+	@Test
+	public void malformedApiKeyIsNotSent() throws Exception
+	{	http.apiKey = "short";
+		assertEquals(PersonyzeError.Type.MALFORMED_API_KEY, postFailure().getType());
+		assertEquals(0, transport.getRequests().size());
+	}
+
+	@Test
+	public void retryableErrorIsRetriedWithGrowingTimeout() throws Exception
+	{	transport.fail("POST", "tracker-v1", PersonyzeError.forHttpStatus(503, null));
+		http.setPolicy(Endpoint.TRACKER, new PersonyzeRequestPolicy(1000, 2, 2));
+		assertEquals(PersonyzeError.Type.HTTP_503, postFailure().getType());
+		List<PersonyzeFakeTransport.Request> requests = transport.getRequests();
+		assertEquals(3, requests.size());
+		assertEquals(1000, requests.get(0).timeoutMillis);
+		assertEquals(2000, requests.get(1).timeoutMillis);
+		assertEquals(4000, requests.get(2).timeoutMillis);
+	}
+
+	@Test
+	public void retriesStopAtDeadline() throws Exception
+	{	transport.fail("POST", "tracker-v1", PersonyzeError.forHttpStatus(503, null));
+		http.setPolicy(Endpoint.TRACKER, new PersonyzeRequestPolicy(1000, 5, 1, 3000));
+		assertEquals(PersonyzeError.Type.HTTP_503, postFailure().getType());
+		int nRequests = transport.getRequests().size();
+		assertTrue("Sent "+nRequests+" times", nRequests>=2 && nRequests<=3); // delays are 0.5-1 s, 1-2 s and 2-4 s
+	}
+
+	@Test
+	public void serverErrorIsNotRetried() throws Exception
+	{	transport.fail("POST", "tracker-v1", PersonyzeError.forHttpStatus(500, "Invalid request".getBytes("utf-8")));
+		PersonyzeError e = postFailure();
+		assertEquals(PersonyzeError.Type.HTTP_500, e.getType());
+		assertEquals("Invalid request", e.getMessage());
+		assertEquals(1, transport.getRequests().size());
+	}
+
+	@Test
+	public void serverErrorWithoutMessage()
+	{	assertEquals("HTTP request failed", PersonyzeError.forHttpStatus(500, null).getMessage());
+		assertEquals("HTTP request failed", PersonyzeError.forHttpStatus(500, new byte[0]).getMessage());
+	}
+
+	@Test
+	public void openBreakerFailsFast() throws Exception
+	{	transport.fail("POST", "tracker-v1", PersonyzeError.forHttpStatus(503, null));
+		http.setPolicy(Endpoint.TRACKER, new PersonyzeRequestPolicy(1000, 0, 1));
+		http.breaker.configure(2, 0.5, 60000);
+		assertEquals(PersonyzeError.Type.HTTP_503, postFailure().getType());
+		assertEquals(PersonyzeError.Type.HTTP_503, postFailure().getType());
+		assertEquals(PersonyzeCircuitBreaker.State.OPEN, http.breaker.getState());
+		assertEquals(PersonyzeError.Type.CIRCUIT_OPEN, postFailure().getType());
+		assertEquals(2, transport.getRequests().size());
+	}
+
+	@Test
+	public void missingResponseIsNotFound() throws Exception
+	{	PersonyzeError e = (PersonyzeError)awaitFailure(http.get("conditions/columns/id,name/where/id=1", Lane.INTERACTIVE, Endpoint.METADATA));
+		assertEquals(PersonyzeError.Type.OTHER, e.getType());
+		assertEquals(1, transport.getRequests().size());
+		assertEquals("GET", transport.getRequests().get(0).method);
+	}
+
+	@Test
+	public void sameGetInOneLaneIsSentOnce() throws Exception
+	{	String path = "conditions/columns/id,name/where/id=1";
+		transport.respond("GET", path, RESPONSE);
+		transport.hold();
+		Task<String> first = http.get(path, Lane.INTERACTIVE, Endpoint.METADATA);
+		Task<String> second = http.get(path, Lane.INTERACTIVE, Endpoint.METADATA);
+		transport.release();
+		assertEquals(RESPONSE, await(first));
+		assertEquals(RESPONSE, await(second));
+		assertEquals(1, transport.getRequests().size());
+	}
+
+	@Test
+	public void sameGetInOtherLaneIsSentAgain() throws Exception
+	{	String path = "conditions/columns/id,name/where/id=1";
+		transport.respond("GET", path, RESPONSE);
+		transport.hold();
+		Task<String> background = http.get(path, Lane.BACKGROUND, Endpoint.METADATA);
+		Task<String> interactive = http.get(path, Lane.INTERACTIVE, Endpoint.METADATA);
+		transport.release();
+		assertEquals(RESPONSE, await(background));
+		assertEquals(RESPONSE, await(interactive));
+		List<PersonyzeFakeTransport.Request> requests = transport.getRequests();
+		assertEquals(2, requests.size());
+		assertEquals(Lane.BACKGROUND, requests.get(0).lane);
+		assertEquals(Lane.INTERACTIVE, requests.get(1).lane);
+	}
+
+	@Test
+	public void requestThatCantStartReleasesLane() throws Exception
+	{	http.setTransport
+		(	new PersonyzeFakeTransport()
+			{	@Override public Task<String> post(String url, Map<String, String> headers, byte[] body, Lane lane, int timeoutMillis)
+				{	throw new RejectedExecutionException("Shut down");
+				}
+			}
+		);
+		http.setPolicy(Endpoint.TRACKER, new PersonyzeRequestPolicy(1000, 0, 1));
+		for (int i=0; i<3; i++) // BACKGROUND lane runs one request at a time
+		{	PersonyzeError e = (PersonyzeError)awaitFailure(http.post("tracker-v1", REQUEST.getBytes("utf-8"), Lane.BACKGROUND));
+			assertEquals("Couldn't start request: Shut down", e.getMessage());
+		}
+	}
+
+	@Test
+	public void warmUpOpensConnectionToGateway() throws Exception
+	{	await(http.warmUp());
+		PersonyzeFakeTransport.Request request = transport.getRequests().get(0);
+		assertEquals("HEAD", request.method);
+		assertEquals(PersonyzeTracker.GATEWAY_URL, request.url);
+		assertEquals(Lane.INTERACTIVE, request.lane);
+	}
+}
@@ -0,0 +1,96 @@
+package com.personyze.androidsdk;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeJournalTest
+{	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+	@Before
+	public void setUp()
+	{	dir = new File(folder.getRoot(), "Journal");
+	}
+
+	private void runTasks()
+	{	Runnable task;
+		while ((task = tasks.poll()) != null)
+		{	task.run();
+		}
+	}
+
+	private static PersonyzeCommand command(String productId)
+	{	return new PersonyzeCommand(PersonyzeCommand.Op.PRODUCT_VIEWED, 0, productId, null);
+	}
+
+	private static List<String> productIds(List<PersonyzeCommand> commands)
+	{	ArrayList<String> ids = new ArrayList<>();
+		for (PersonyzeCommand command : commands)
+		{	ids.add(command.arg1);
+		}
+		return ids;
+	}
+
+	private int nFiles()
+	{	String[] names = dir.list();
+		return names==null ? 0 : names.length;
+	}
+
+	@Test
+	public void appendDoesntWriteOnCallingThread()
+	{	PersonyzeJournal journal = new PersonyzeJournal(dir, tasks::add);
+		journal.append(command("1"));
+		journal.append(command("2"));
+		assertEquals(0, nFiles());
+		assertEquals(1, tasks.size()); // one write for both
+		runTasks();
+		assertEquals(1, nFiles());
+		assertEquals(Arrays.asList("1", "2"), productIds(new PersonyzeJournal(dir, tasks::add).replay()));
+	}
+
+	@Test
+	public void sealWritesWhatIsQueued()
+	{	PersonyzeJournal journal = new PersonyzeJournal(dir, tasks::add);
+		journal.append(command("1"));
+		ArrayList<File> segments = journal.seal();
+		assertEquals(1, segments.size());
+		assertEquals(Arrays.asList("1"), productIds(new PersonyzeJournal(dir, tasks::add).replay()));
+		runTasks(); // nothing left to write
+		assertEquals(1, nFiles());
+		journal.ack(segments);
+		assertEquals(0, nFiles());
+	}
+
+	@Test
+	public void replaceLeavesOnlyRemainingCommands()
+	{	PersonyzeJournal journal = new PersonyzeJournal(dir, tasks::add);
+		journal.append(command("1"));
+		journal.unseal(journal.seal()); // sending failed
+		journal.append(command("2"));
+		journal.append(command("3"));
+		ArrayList<File> segments = journal.seal();
+		assertEquals(2, segments.size());
+		ArrayList<File> rest = journal.replace(segments, Arrays.asList(command("3")));
+		assertEquals(1, rest.size());
+		assertEquals(Arrays.asList("3"), productIds(new PersonyzeJournal(dir, tasks::add).replay()));
+		assertTrue(journal.replace(rest, new ArrayList<PersonyzeCommand>()).isEmpty());
+		assertEquals(0, nFiles());
+	}
+}
@@ -0,0 +1,73 @@
+package com.personyze.androidsdk;
+
+import org.junit.Test;
+
+import com.personyze.androidsdk.PersonyzeRequestPolicy.Endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PersonyzeRequestPolicyTest
+{	private static void assertRejected(int timeoutMillis, int maxRetries, float backoffMultiplier, int deadlineMillis)
+	{	try
+		{	new PersonyzeRequestPolicy(timeoutMillis, maxRetries, backoffMultiplier, deadlineMillis);
+			fail("Accepted "+timeoutMillis+", "+maxRetries+", "+backoffMultiplier+", "+deadlineMillis);
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+	}
+
+	@Test
+	public void invalidValuesAreRejected()
+	{	assertRejected(0, 1, 1, 0);
+		assertRejected(-1, 1, 1, 0);
+		assertRejected(1000, -1, 1, 0);
+		assertRejected(1000, 1, 0.5f, 0);
+		assertRejected(1000, 1, Float.NaN, 0);
+		assertRejected(1000, 1, 1, -1);
+	}
+
+	@Test
+	public void timeoutGrowsAndIsCutByDeadline()
+	{	PersonyzeRequestPolicy policy = new PersonyzeRequestPolicy(1000, 3, 2, 5000);
+		assertEquals(1000, policy.timeoutFor(0, 0));
+		assertEquals(2000, policy.timeoutFor(1, 1500));
+		assertEquals(1500, policy.timeoutFor(2, 3500));
+		assertEquals(8000, new PersonyzeRequestPolicy(1000, 3, 2).timeoutFor(3, 60000));
+	}
+
+	@Test
+	public void retryMustFitDeadline()
+	{	PersonyzeRequestPolicy policy = new PersonyzeRequestPolicy(1000, 3, 1, 5000);
+		assertTrue(policy.canRetry(0, 1000, 1000));
+		assertTrue(policy.canRetry(1, 3000, 1000)); // exactly MIN_ATTEMPT_MILLIS left
+		assertFalse(policy.canRetry(1, 3500, 1000));
+		assertFalse(policy.canRetry(3, 0, 0)); // no retries left
+		assertTrue(new PersonyzeRequestPolicy(1000, 3, 1).canRetry(2, 60000, 30000));
+	}
+
+	/**
+	 * Worst case: each attempt times out, and each delay is the longest.
+	 */
+	@Test
+	public void defaultsAreBoundedByDeadline()
+	{	for (Endpoint endpoint : Endpoint.values())
+		{	PersonyzeRequestPolicy policy = PersonyzeRequestPolicy.defaultFor(endpoint);
+			long elapsed = 0;
+			int attempt = 0;
+			while (true)
+			{	elapsed += policy.timeoutFor(attempt, elapsed);
+				long delay = Math.min(1000L << attempt, 30000);
+				if (!policy.canRetry(attempt, elapsed, delay))
+				{	break;
+				}
+				elapsed += delay;
+				attempt++;
+			}
+			assertTrue(endpoint+" takes "+elapsed+" ms", elapsed <= 10000);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.personyze.androidsdk;
+
+import android.os.Looper;
+
+import com.google.android.gms.tasks.Task;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Waiting for tasks in Robolectric tests, where listeners without executor and PersonyzeBackoff delays run on the paused main looper.
+ */
+class PersonyzeTestTasks
+{	private static final long TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Run the main looper till the task completes. Each round advances the looper clock by 10 ms, so delays pass quickly.
+	 * @return The result, or throws the exception of the task.
+	 */
+	static <T> T await(Task<T> task) throws Exception
+	{	long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!task.isComplete())
+		{	if (System.currentTimeMillis() > deadline)
+			{	throw new TimeoutException("Task didn't complete");
+			}
+			shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(10));
+			Thread.sleep(1);
+		}
+		if (task.getException() != null)
+		{	throw task.getException();
+		}
+		return task.getResult();
+	}
+
+	/**
+	 * @return The exception that the task failed with.
+	 */
+	static Exception awaitFailure(Task<?> task) throws Exception
+	{	try
+		{	await(task);
+		}
+		catch (Exception e)
+		{	return e;
+		}
+		throw new AssertionError("Task didn't fail");
+	}
+}
@@ -0,0 +1,38 @@
+package com.personyze.androidsdk;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeTrackerResponseBenchmark
+{	@Before
+	public void setUp()
+	{	PersonyzeBenchmark.assumeEnabled();
+	}
+
+	/**
+	 * Parse times of a response of about 500 KB, the old way (JSONObject tree) and the new way (pull parser).
+	 */
+	@Test
+	public void againstJsonObject() throws Exception
+	{	String response = PersonyzeTrackerResponseTest.response(320);
+		assertTrue(response.length() >= 500*1024);
+		long oldNanos = Long.MAX_VALUE;
+		long newNanos = Long.MAX_VALUE;
+		for (int round=0; round<10; round++)
+		{	long start = System.nanoTime();
+			PersonyzeTrackerResponseTest.OldResponse.parse(response);
+			oldNanos = Math.min(oldNanos, System.nanoTime()-start);
+			start = System.nanoTime();
+			PersonyzeTrackerResponse.parse(response, 5);
+			newNanos = Math.min(newNanos, System.nanoTime()-start);
+		}
+		System.out.println(String.format(Locale.US, "%d KB response: JSONObject %.2f ms, pull parser %.2f ms", response.length()/1024, oldNanos/1e6, newNanos/1e6));
+	}
+}
@@ -0,0 +1,199 @@
+package com.personyze.androidsdk;
+
+import android.util.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeTrackerResponseTest
+{	private static final String[] VALUES =
+	{	"\"text\"", "\"\"", "\"a/b \\\"q\\\" \\\\ \\u00e9 \\u2028\"",
+		"0", "-0", "12", "-12", "2147483648", "9223372036854775807", "9223372036854775808",
+		"1.0", "1.50", "-0.0", "0.1", "1e2", "1E-2", "-1.5e3", "123456789012.5", "1e20",
+		"true", "false", "null",
+		"{}", "[]", "{\"a\":1,\"b\":[1.0,2.5,-0.0,1e2,\"x\"],\"c\":{\"d\":null,\"e\":true}}",
+		"[\"a/b\",\"tab\\tnl\\ncr\\rff\\fbs\\b\",\"\\u0001\\u001f\",\"\\u2028\",\"\\\"\\\\\"]",
+		"[9223372036854775808,1.0E20,0.001]",
+	};
+
+	private static String newWay(String value) throws IOException
+	{	try (JsonReader reader = new JsonReader(new StringReader("{\"v\":"+value+"}")))
+		{	reader.beginObject();
+			reader.nextName();
+			return PersonyzeTrackerResponse.readAsString(reader);
+		}
+	}
+
+	private static String oldWay(String value) throws JSONException
+	{	return new JSONObject("{\"v\":"+value+"}").getString("v");
+	}
+
+	@Test
+	public void valuesAreReadLikeJsonObjectGetString() throws Exception
+	{	for (String value : VALUES)
+		{	assertEquals(value, oldWay(value), newWay(value));
+		}
+	}
+
+	@Test
+	public void responseIsReadLikeBefore() throws Exception
+	{	String response = response(20);
+		PersonyzeTrackerResponse r = PersonyzeTrackerResponse.parse(response, 5);
+		OldResponse old = OldResponse.parse(response);
+		assertEquals(old.sessionId, r.sessionId);
+		assertEquals(old.cacheVersion, r.cacheVersion);
+		assertEquals(old.conditionIds.size(), r.conditions.size());
+		for (int i=0; i<r.conditions.size(); i++)
+		{	assertEquals((int)old.conditionIds.get(i), r.conditions.get(i).id);
+		}
+		assertEquals(old.actionIds.size(), r.actions.size());
+		for (int i=0; i<r.actions.size(); i++)
+		{	assertEquals((int)old.actionIds.get(i), r.actions.get(i).id);
+			assertEquals(old.actionData.get(i), actionData(response, i));
+		}
+		assertArrayEquals(old.dismissConditions, r.dismissConditions);
+		assertArrayEquals(old.dismissActions, r.dismissActions);
+	}
+
+	/**
+	 * Data of actions[i], read with the new way.
+	 */
+	private static HashMap<String, String> actionData(String response, int i) throws IOException
+	{	try (JsonReader reader = new JsonReader(new StringReader(response)))
+		{	HashMap<String, String> data = null;
+			reader.beginObject();
+			while (reader.hasNext())
+			{	if (!reader.nextName().equals("actions"))
+				{	reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				for (int j=0; j<i; j++)
+				{	reader.skipValue();
+				}
+				reader.beginObject();
+				while (reader.hasNext())
+				{	if (reader.nextName().equals("data"))
+					{	data = new HashMap<>();
+						reader.beginObject();
+						while (reader.hasNext())
+						{	String key = reader.nextName();
+							data.put(key, PersonyzeTrackerResponse.readAsString(reader));
+						}
+						reader.endObject();
+					}
+					else
+					{	reader.skipValue();
+					}
+				}
+				return data;
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Response with nActions recommendation actions, each with 10 products of about 200 bytes.
+	 */
+	static String response(int nActions) throws JSONException
+	{	JSONObject object = new JSONObject();
+		object.put("session_id", "1700000000 12");
+		object.put("cache_version", 7);
+		JSONArray conditions = new JSONArray();
+		for (int i=1; i<=50; i++)
+		{	conditions.put(new JSONObject().put("id", i));
+		}
+		object.put("conditions", conditions);
+		JSONArray actions = new JSONArray();
+		for (int i=1; i<=nActions; i++)
+		{	JSONObject data = new JSONObject();
+			data.put("title", "Recommended for you / "+i);
+			data.put("count", i);
+			data.put("score", i*0.25);
+			data.put("enabled", i%2 == 0);
+			JSONArray products = new JSONArray();
+			for (int j=0; j<10; j++)
+			{	products.put
+				(	new JSONObject()
+						.put("id", "SKU-"+i+"-"+j)
+						.put("name", "Product \""+j+"\"\twith a long name, to look like real data")
+						.put("price", 9.99+j)
+						.put("old_price", 20.0)
+						.put("image", "https://example.com/images/"+i+"/"+j+".jpg")
+				);
+			}
+			data.put("products", products);
+			actions.put(new JSONObject().put("id", 1000+i).put("data", data));
+		}
+		object.put("actions", actions);
+		object.put("dismiss_conditions", new JSONArray().put(51).put(52));
+		object.put("dismiss_actions", new JSONArray().put(999));
+		return object.toString();
+	}
+
+	/**
+	 * How the response was read before PersonyzeTrackerResponse.
+	 */
+	static class OldResponse
+	{	String sessionId;
+		int cacheVersion;
+		ArrayList<Integer> conditionIds = new ArrayList<>();
+		ArrayList<Integer> actionIds = new ArrayList<>();
+		ArrayList<HashMap<String, String>> actionData = new ArrayList<>();
+		int[] dismissConditions;
+		int[] dismissActions;
+
+		static OldResponse parse(String response) throws JSONException
+		{	OldResponse r = new OldResponse();
+			JSONObject object = (JSONObject)new JSONTokener(response).nextValue();
+			r.sessionId = object.isNull("session_id") ? null : object.getString("session_id");
+			r.cacheVersion = object.getInt("cache_version");
+			JSONArray rConditions = object.getJSONArray("conditions");
+			JSONArray rActions = object.getJSONArray("actions");
+			JSONArray rDismissConditions = object.getJSONArray("dismiss_conditions");
+			JSONArray rDismissActions = object.getJSONArray("dismiss_actions");
+			for (int i=0, iEnd=rConditions.length(); i<iEnd; i++)
+			{	r.conditionIds.add(rConditions.getJSONObject(i).getInt("id"));
+			}
+			for (int i=0, iEnd=rActions.length(); i<iEnd; i++)
+			{	object = rActions.getJSONObject(i);
+				r.actionIds.add(object.getInt("id"));
+				HashMap<String, String> data = null;
+				JSONObject jData = object.optJSONObject("data");
+				if (jData != null)
+				{	data = new HashMap<>();
+					Iterator<String> keys = jData.keys();
+					while (keys.hasNext())
+					{	String key = keys.next();
+						data.put(key, jData.getString(key));
+					}
+				}
+				r.actionData.add(data);
+			}
+			r.dismissConditions = new int[rDismissConditions.length()];
+			for (int i=0, iEnd=rDismissConditions.length(); i<iEnd; i++)
+			{	r.dismissConditions[i] = rDismissConditions.getInt(i);
+			}
+			r.dismissActions = new int[rDismissActions.length()];
+			for (int i=0, iEnd=rDismissActions.length(); i<iEnd; i++)
+			{	r.dismissActions[i] = rDismissActions.getInt(i);
+			}
+			return r;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.personyze.androidsdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static com.personyze.androidsdk.PersonyzeTestTasks.await;
+import static com.personyze.androidsdk.PersonyzeTestTasks.awaitFailure;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeUrlConnectionTransportTest
+{	private static final String API_KEY = "0123456789012345678901234567890123456789";
+	private static final String REQUEST = "{\"user_id\":0,\"commands\":[[\"Navigate\",\"Home\"]]}";
+	private static final String RESPONSE = "{\"data\":{\"session_id\":1,\"conditions\":[],\"actions\":[]}}";
+
+	private MockWebServer server;
+	private PersonyzeUrlConnectionTransport transport;
+	private PersonyzeHttp http;
+
+	@Before
+	public void setUp() throws IOException
+	{	server = new MockWebServer();
+		server.start();
+		transport = new PersonyzeUrlConnectionTransport();
+		http = new PersonyzeHttp();
+		http.setTransport(transport);
+		http.apiKey = API_KEY;
+		http.gatewayUrl = server.url("/rest/").toString();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{	transport.shutdown();
+		server.shutdown();
+	}
+
+	private static Buffer gzipped(String str) throws IOException
+	{	return new Buffer().write(PersonyzeHttp.gzip(str.getBytes("utf-8")));
+	}
+
+	@Test
+	public void postIsCompressedAndResponseIsDecoded() throws Exception
+	{	server.enqueue(new MockResponse().setHeader("Content-Encoding", "gzip").setBody(gzipped(RESPONSE)));
+		http.gzipMinBytes = 1;
+		assertEquals(RESPONSE, await(http.post("tracker-v1", REQUEST.getBytes("utf-8"), PersonyzeTransport.Lane.INTERACTIVE)));
+		RecordedRequest request = server.takeRequest();
+		assertEquals("POST", request.getMethod());
+		assertEquals("/rest/tracker-v1", request.getPath());
+		assertEquals("gzip", request.getHeader("Content-Encoding"));
+		assertEquals("gzip", request.getHeader("Accept-Encoding"));
+		assertEquals(REQUEST, new String(PersonyzeHttp.gunzip(request.getBody().readByteArray()), "utf-8"));
+	}
+
+	@Test
+	public void shortPostIsSentAsIs() throws Exception
+	{	server.enqueue(new MockResponse().setBody(RESPONSE));
+		http.gzipMinBytes = 1000;
+		assertEquals(RESPONSE, await(http.post("tracker-v1", REQUEST.getBytes("utf-8"), PersonyzeTransport.Lane.INTERACTIVE)));
+		RecordedRequest request = server.takeRequest();
+		assertNull(request.getHeader("Content-Encoding"));
+		assertEquals(REQUEST, request.getBody().readUtf8());
+	}
+
+	@Test
+	public void compressedErrorIsDecoded() throws Exception
+	{	server.enqueue(new MockResponse().setResponseCode(500).setHeader("Content-Encoding", "gzip").setBody(gzipped("Invalid request")));
+		PersonyzeError e = (PersonyzeError)awaitFailure(http.post("tracker-v1", REQUEST.getBytes("utf-8"), PersonyzeTransport.Lane.INTERACTIVE));
+		assertEquals(PersonyzeError.Type.HTTP_500, e.getType());
+		assertEquals("Invalid request", e.getMessage());
+	}
+}
@@ -0,0 +1,84 @@
+package com.personyze.androidsdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.android.volley.NoConnectionError;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.NoCache;
+
+import com.google.android.gms.tasks.Task;
+
+import com.personyze.androidsdk.PersonyzeTransport.Lane;
+
+import static com.personyze.androidsdk.PersonyzeTestTasks.await;
+import static com.personyze.androidsdk.PersonyzeTestTasks.awaitFailure;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeVolleyTransportTest
+{	private static final String API_KEY = "0123456789012345678901234567890123456789";
+	private static final byte[] REQUEST = "{\"user_id\":0,\"commands\":[]}".getBytes();
+	private static final String RESPONSE = "{\"session_id\":null}";
+
+	/**
+	 * Queue whose requests never complete by themselves. The network threads wait till the queue is stopped.
+	 * @param started Counted down when a request reaches the network.
+	 */
+	private static RequestQueue hangingQueue(final CountDownLatch started)
+	{	RequestQueue queue = new RequestQueue
+		(	new NoCache(),
+			request ->
+			{	started.countDown();
+				try
+				{	Thread.sleep(Long.MAX_VALUE);
+				}
+				catch (InterruptedException e)
+				{	// the queue was stopped
+				}
+				throw new NoConnectionError();
+			},
+			2
+		);
+		queue.start();
+		return queue;
+	}
+
+	@Test
+	public void shutdownFailsRequestsInFlightAndWaitingForLane() throws Exception
+	{	CountDownLatch started = new CountDownLatch(1);
+		PersonyzeHttp http = new PersonyzeHttp();
+		http.setTransport(new PersonyzeVolleyTransport(hangingQueue(started), true));
+		http.apiKey = API_KEY;
+		Task<String> inFlight = http.post("tracker-v1", REQUEST, Lane.BACKGROUND);
+		Task<String> waiting = http.post("tracker-v1", REQUEST, Lane.BACKGROUND); // BACKGROUND lane runs one request at a time
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertFalse(waiting.isComplete());
+
+		http.shutdown();
+		assertTrue(awaitFailure(inFlight) instanceof PersonyzeError);
+		assertTrue(awaitFailure(waiting) instanceof PersonyzeError);
+
+		// the lane is free for the next transport
+		PersonyzeFakeTransport transport = new PersonyzeFakeTransport();
+		transport.respond("POST", "tracker-v1", RESPONSE);
+		http.setTransport(transport);
+		assertEquals(RESPONSE, await(http.post("tracker-v1", REQUEST, Lane.BACKGROUND)));
+	}
+
+	@Test
+	public void requestAfterShutdownFailsAtOnce()
+	{	PersonyzeVolleyTransport transport = new PersonyzeVolleyTransport(hangingQueue(new CountDownLatch(1)), true);
+		transport.shutdown();
+		Task<String> task = transport.get("http://localhost/", new HashMap<>(), Lane.INTERACTIVE, 1000);
+		assertTrue(task.isComplete());
+		assertTrue(task.getException() instanceof PersonyzeError);
+	}
+}
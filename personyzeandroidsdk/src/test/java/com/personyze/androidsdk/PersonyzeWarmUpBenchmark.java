@@ -0,0 +1,62 @@
+package com.personyze.androidsdk;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static com.personyze.androidsdk.PersonyzeWarmUpTest.firstRequest;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeWarmUpBenchmark
+{	private static final int N_ROUNDS = 5;
+
+	private PersonyzeUrlConnectionTransport transport;
+
+	@BeforeClass
+	public static void trustLocalServer() throws IOException
+	{	PersonyzeWarmUpTest.trustLocalServer();
+	}
+
+	@AfterClass
+	public static void restoreTrust()
+	{	PersonyzeWarmUpTest.restoreTrust();
+	}
+
+	@Before
+	public void setUp()
+	{	PersonyzeBenchmark.assumeEnabled();
+		transport = new PersonyzeUrlConnectionTransport();
+	}
+
+	@After
+	public void tearDown()
+	{	if (transport != null)
+		{	transport.shutdown();
+		}
+	}
+
+	/**
+	 * Median time of the first request, cold and after warm-up.
+	 */
+	@Test
+	public void coldStart() throws Exception
+	{	firstRequest(transport, false); // load classes
+		long[] cold = new long[N_ROUNDS];
+		long[] warm = new long[N_ROUNDS];
+		for (int i=0; i<N_ROUNDS; i++)
+		{	cold[i] = firstRequest(transport, false);
+			warm[i] = firstRequest(transport, true);
+		}
+		Arrays.sort(cold);
+		Arrays.sort(warm);
+		System.out.println(String.format(Locale.US, "First request: cold %.2f ms, after warm-up %.2f ms", cold[N_ROUNDS/2]/1e6, warm[N_ROUNDS/2]/1e6));
+	}
+}
@@ -0,0 +1,111 @@
+package com.personyze.androidsdk;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static com.personyze.androidsdk.PersonyzeTestTasks.await;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Warm-up against a local TLS server, that stands in for Personyze gateway. {@link PersonyzeWarmUpBenchmark} times the first request with and without it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PersonyzeWarmUpTest
+{	private static final String API_KEY = "0123456789012345678901234567890123456789";
+	private static final String RESPONSE = "{\"session_id\":null}";
+
+	private static HandshakeCertificates serverCertificates;
+	private static SSLSocketFactory defaultFactory;
+	private PersonyzeUrlConnectionTransport transport;
+
+	@BeforeClass
+	public static void trustLocalServer() throws IOException
+	{	String host = InetAddress.getByName("localhost").getCanonicalHostName();
+		HeldCertificate certificate = new HeldCertificate.Builder().addSubjectAlternativeName(host).build();
+		serverCertificates = new HandshakeCertificates.Builder().heldCertificate(certificate).build();
+		HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder().addTrustedCertificate(certificate.certificate()).build();
+		defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+		HttpsURLConnection.setDefaultSSLSocketFactory(clientCertificates.sslSocketFactory());
+	}
+
+	@AfterClass
+	public static void restoreTrust()
+	{	HttpsURLConnection.setDefaultSSLSocketFactory(defaultFactory);
+	}
+
+	@Before
+	public void setUp()
+	{	transport = new PersonyzeUrlConnectionTransport();
+	}
+
+	@After
+	public void tearDown()
+	{	transport.shutdown();
+	}
+
+	private static MockWebServer startServer() throws IOException
+	{	MockWebServer server = new MockWebServer();
+		server.useHttps(serverCertificates.sslSocketFactory(), false);
+		server.start();
+		return server;
+	}
+
+	private static PersonyzeHttp http(PersonyzeTransport transport, MockWebServer server)
+	{	PersonyzeHttp http = new PersonyzeHttp();
+		http.setTransport(transport);
+		http.apiKey = API_KEY;
+		http.gatewayUrl = server.url("/rest/").toString();
+		return http;
+	}
+
+	/**
+	 * Call between {@link #trustLocalServer()} and {@link #restoreTrust()}.
+	 * @return Time of the first tracker request to a new server, in nanoseconds.
+	 */
+	static long firstRequest(PersonyzeTransport transport, boolean warmUp) throws Exception
+	{	MockWebServer server = startServer();
+		try
+		{	PersonyzeHttp http = http(transport, server);
+			if (warmUp)
+			{	server.enqueue(new MockResponse());
+				await(http.warmUp());
+			}
+			server.enqueue(new MockResponse().setBody(RESPONSE));
+			long start = System.nanoTime();
+			assertEquals(RESPONSE, await(http.post("tracker-v1", "{}".getBytes("utf-8"), PersonyzeTransport.Lane.INTERACTIVE)));
+			long time = System.nanoTime() - start;
+			if (warmUp)
+			{	assertEquals("HEAD", server.takeRequest().getMethod());
+				assertEquals(1, server.takeRequest().getSequenceNumber()); // second request on the connection that warm-up opened
+			}
+			else
+			{	assertEquals(0, server.takeRequest().getSequenceNumber());
+			}
+			return time;
+		}
+		finally
+		{	server.shutdown();
+		}
+	}
+
+	@Test
+	public void firstRequestReusesWarmConnection() throws Exception
+	{	firstRequest(transport, true);
+	}
+}